@@ -0,0 +1,49 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Creating a frame from scratch compared to reusing one, as done by the frame buffer
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AmbilightDataBenchmark {
+	@Param({ "2", "8", "32" })
+	public int ledsPerSide;
+
+	private AmbilightData source;
+	private AmbilightData target;
+
+	@Setup
+	public void setup() throws Exception {
+		this.source = AmbilightPayloads.createFrame(this.ledsPerSide, 42);
+		this.target = new AmbilightData();
+	}
+
+	@Benchmark
+	public AmbilightData create() {
+		AmbilightData frame = new AmbilightData();
+		frame.copyFrom(this.source);
+		return frame;
+	}
+
+	@Benchmark
+	public AmbilightData reuse() {
+		this.target.copyFrom(this.source);
+		return this.target;
+	}
+}
@@ -0,0 +1,44 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Responses of /1/ambilight/processed in the format sent by the TV, with a fixed seed so
+// all runs see the same colors
+final class AmbilightPayloads {
+	private final static String[] SIDES = { "left", "top", "right", "bottom" };
+
+	private AmbilightPayloads() {
+	}
+
+	// Left and right get ledsPerSide LEDs, top and bottom twice as many
+	static byte[] create(int ledsPerSide, long seed) {
+		Random random = new Random(seed);
+
+		StringBuilder result = new StringBuilder("{\"layer1\":{");
+		for (int side = 0; side < SIDES.length; side++) {
+			if (side > 0)
+				result.append(',');
+			result.append('"').append(SIDES[side]).append("\":{");
+
+			int leds = side % 2 == 0 ? ledsPerSide : 2 * ledsPerSide;
+			for (int i = 0; i < leds; i++) {
+				if (i > 0)
+					result.append(',');
+				result.append('"').append(i).append("\":{")
+					.append("\"r\":").append(random.nextInt(256)).append(',')
+					.append("\"g\":").append(random.nextInt(256)).append(',')
+					.append("\"b\":").append(random.nextInt(256)).append('}');
+			}
+			result.append('}');
+		}
+		return result.append("}}").toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	static AmbilightData createFrame(int ledsPerSide, long seed) throws Exception {
+		AmbilightData frame = new AmbilightData();
+		new StreamingAmbilightParser().parse(new ByteArrayInputStream(create(ledsPerSide, seed)), frame);
+		return frame;
+	}
+}
@@ -0,0 +1,87 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.philips.lighting.hue.sdk.utilities.PHUtilities;
+
+// RGB to xy conversion by the SDK compared to the lookup table, for colors of a typical frame.
+// The setup fails if the table exceeds its error bound on a grid sampled over all colors
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorConversionBenchmark {
+	// Hue bulb (gamut B) and LightStrip (gamut A)
+	@Param({ "LCT001", "LST001" })
+	public String modelNumber;
+
+	private final static int COLORS = 1024;
+	private final static int ACCURACY_STEP = 5;
+
+	private int[] colors;
+	private ColorLookupTable table;
+	private float[] xy;
+	private int next;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		this.colors = new int[COLORS];
+		for (int i = 0; i < COLORS; i++)
+			this.colors[i] = random.nextInt(1 << 24);
+
+		this.table = ColorLookupTable.forModel(this.modelNumber);
+		this.xy = new float[2];
+		this.checkAccuracy();
+	}
+
+	@Benchmark
+	public float[] sdk() {
+		int color = this.nextColor();
+		return PHUtilities.calculateXYFromRGB(color >>> 16, (color >>> 8) & 0xFF, color & 0xFF, this.modelNumber);
+	}
+
+	@Benchmark
+	public float[] lookupTable() {
+		int color = this.nextColor();
+		this.table.calculateXY(color >>> 16, (color >>> 8) & 0xFF, color & 0xFF, this.xy);
+		return this.xy;
+	}
+
+	private void checkAccuracy() {
+		float maxError = 0;
+		for (int r = 0; r < 256; r += ACCURACY_STEP) {
+			for (int g = 0; g < 256; g += ACCURACY_STEP) {
+				for (int b = 0; b < 256; b += ACCURACY_STEP) {
+					this.table.calculateXY(r, g, b, this.xy);
+					float[] expected = PHUtilities.calculateXYFromRGB(r, g, b, this.modelNumber);
+					maxError = Math.max(maxError, (float) Math.hypot(this.xy[0] - expected[0], this.xy[1] - expected[1]));
+				}
+			}
+		}
+
+		System.out.println("Lookup table error for " + this.modelNumber + ": at most " + maxError);
+		if (maxError > ColorLookupTable.MAX_ERROR)
+			throw new IllegalStateException("Lookup table error " + maxError + " exceeds " + ColorLookupTable.MAX_ERROR);
+	}
+
+	private int nextColor() {
+		this.next = (this.next + 1) & (COLORS - 1);
+		return this.colors[this.next];
+	}
+}
@@ -0,0 +1,50 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Handing frames from a reader thread to the hue thread through the frame buffer,
+// with both threads running concurrently
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandoffBenchmark {
+	private AmbilightFrameBuffer frames;
+	private AmbilightData source;
+
+	@Setup
+	public void setup() throws Exception {
+		this.frames = new AmbilightFrameBuffer();
+		this.source = AmbilightPayloads.createFrame(8, 42);
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public boolean publish() {
+		this.frames.getWriteFrame().copyFrom(this.source);
+		return this.frames.publish();
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public AmbilightData take() {
+		return this.frames.takeLatest();
+	}
+}
@@ -0,0 +1,96 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One frame on its way from the reading thread to the lights with the shipped logging configuration,
+// where trace is disabled: handed over by the frame buffer, processed by the pipeline and applied to
+// four lights of a HueController, which converts and queues the colors. The bridge is not connected,
+// so nothing is sent. Frames alternate between two payloads, so every light changes color.
+// Also formatting a frame as a log message, as done with trace enabled.
+// Run with -prof gc: gc.alloc.rate.norm is the allocation per frame
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggingBenchmark {
+	private final static String[] MAPPINGS = { "Couch:Left", "Shelf:Top0-15", "Desk:Right:80", "Window:Bottom+Right*0.5" };
+
+	// Median and smoothing filters in the pipeline
+	@Param({ "false", "true" })
+	public boolean filtered;
+
+	private TickScheduler scheduler;
+	private HueController hueController;
+	private AmbilightFrameBuffer frames;
+	private FramePipeline pipeline;
+	private List<HueAmbilightMapping> mappings;
+	private AmbilightData[] payloads;
+	private int next;
+	private StringBuilder message;
+
+	@Setup
+	public void setup() throws Exception {
+		this.scheduler = new TickScheduler("benchmark", 1);
+		this.hueController = new HueController(this.scheduler, 10, 0.004f, 2000, "ambihue-benchmark");
+
+		List<TopologyCache.Light> lights = new ArrayList<TopologyCache.Light>();
+		this.mappings = new ArrayList<HueAmbilightMapping>();
+		for (int i = 0; i < MAPPINGS.length; i++) {
+			HueAmbilightMapping mapping = HueAmbilightMapping.parse(MAPPINGS[i]);
+			lights.add(new TopologyCache.Light(mapping.getLightName(), String.valueOf(i + 1), "LCT015"));
+			this.mappings.add(mapping);
+		}
+		this.hueController.preloadLights(lights);
+
+		this.frames = new AmbilightFrameBuffer();
+		this.pipeline = new FramePipeline(0);
+		if (this.filtered) {
+			this.pipeline.addFilter(new MedianFilter(3));
+			this.pipeline.addFilter(new SmoothingFilter(0.5f));
+		}
+		this.payloads = new AmbilightData[] { AmbilightPayloads.createFrame(32, 42), AmbilightPayloads.createFrame(32, 43) };
+		this.message = new StringBuilder();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		this.hueController.close();
+		this.scheduler.close();
+	}
+
+	@Benchmark
+	public void frame() {
+		this.frames.getWriteFrame().copyFrom(this.payloads[this.next]);
+		this.frames.publish();
+		this.next = 1 - this.next;
+
+		AmbilightData data = this.pipeline.process(this.frames.takeLatest(), System.nanoTime());
+		for (HueAmbilightMapping mapping : this.mappings)
+			mapping.apply(this.hueController, data);
+		this.hueController.flush();
+	}
+
+	@Benchmark
+	public StringBuilder formatFrame() {
+		this.message.setLength(0);
+		this.payloads[0].formatTo(this.message);
+		return this.message;
+	}
+}
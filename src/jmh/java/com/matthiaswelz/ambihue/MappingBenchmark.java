@@ -0,0 +1,59 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Parsing mappings at startup and applying them to a frame, which is done per light and frame
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+	@Param({ "Lamp:Left1", "Lamp:Left0-7:80", "Lamp:Left+Top0-3*0.5:80" })
+	public String mapping;
+
+	private HueAmbilightMapping parsed;
+	private AmbilightData frame;
+	private LightOutput output;
+
+	@Setup
+	public void setup(final Blackhole blackhole) throws Exception {
+		this.parsed = HueAmbilightMapping.parse(this.mapping);
+		this.frame = AmbilightPayloads.createFrame(32, 42);
+		this.output = new LightOutput() {
+			@Override
+			public void setColor(String lightName, int r, int g, int b) {
+				blackhole.consume(r);
+				blackhole.consume(g);
+				blackhole.consume(b);
+			}
+			@Override
+			public void flush() {
+			}
+		};
+	}
+
+	@Benchmark
+	public HueAmbilightMapping parse() {
+		return HueAmbilightMapping.parse(this.mapping);
+	}
+
+	@Benchmark
+	public void apply() {
+		this.parsed.apply(this.output, this.frame);
+	}
+}
@@ -0,0 +1,48 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing a response of the TV into a reused frame, for TVs with few and many LEDs
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+	@Param({ "2", "8", "32" })
+	public int ledsPerSide;
+	@Param({ "Streaming", "JSON" })
+	public AmbilightParser.Type parserType;
+
+	private AmbilightParser parser;
+	private ByteArrayInputStream payload;
+	private AmbilightData frame;
+
+	@Setup
+	public void setup() {
+		this.parser = this.parserType.create();
+		this.payload = new ByteArrayInputStream(AmbilightPayloads.create(this.ledsPerSide, 42));
+		this.frame = new AmbilightData();
+	}
+
+	@Benchmark
+	public AmbilightData parse() throws Exception {
+		this.payload.reset();
+		this.parser.parse(this.payload, this.frame);
+		return this.frame;
+	}
+}
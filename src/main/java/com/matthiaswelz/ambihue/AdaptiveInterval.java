@@ -0,0 +1,87 @@
+package com.matthiaswelz.ambihue;
+
+// Adapts the interval for reading the ambilight to the scene: static scenes are read every
+// maxIntervalMs, scenes with a lot of motion every minIntervalMs. Motion is the mean change of
+// a color channel (0 to 255) between consecutive frames. The interval never drops below the time
+// the TV needs to answer with all request slots in use.
+public final class AdaptiveInterval {
+	// Motion at which the interval is longest and shortest
+	private final static float STATIC_MOTION = 1;
+	private final static float FAST_MOTION = 12;
+	// Motion is held at its peak and decays by this factor per frame, so the interval
+	// drops at once when the scene starts moving but rises only slowly
+	private final static float DECAY = 0.9f;
+	// Changes by less than this fraction of the interval are ignored, unless reaching a limit
+	private final static float HYSTERESIS = 0.1f;
+
+	private final int minIntervalMs;
+	private final int maxIntervalMs;
+	private final int initialIntervalMs;
+
+	// Only used by the thread calling update
+	private final AmbilightData previous;
+	private boolean hasPrevious;
+	private float motion;
+	private int intervalMs;
+
+	public AdaptiveInterval(int minIntervalMs, int maxIntervalMs, int initialIntervalMs) {
+		assert minIntervalMs > 0;
+		assert maxIntervalMs >= minIntervalMs;
+
+		this.minIntervalMs = minIntervalMs;
+		this.maxIntervalMs = maxIntervalMs;
+		this.initialIntervalMs = Math.min(Math.max(initialIntervalMs, minIntervalMs), maxIntervalMs);
+		this.previous = new AmbilightData();
+		this.reset();
+	}
+
+	public void reset() {
+		this.hasPrevious = false;
+		this.motion = 0;
+		this.intervalMs = this.initialIntervalMs;
+	}
+
+	// Returns the interval for reading the next frames
+	public int update(AmbilightData frame, double latencyMs, int requestSlots) {
+		assert requestSlots > 0;
+
+		this.motion = Math.max(this.measureMotion(frame), this.motion * DECAY);
+		this.previous.copyFrom(frame);
+		this.hasPrevious = true;
+
+		float position = (this.motion - STATIC_MOTION) / (FAST_MOTION - STATIC_MOTION);
+		position = Math.min(Math.max(position, 0), 1);
+		int target = Math.round(this.maxIntervalMs - position * (this.maxIntervalMs - this.minIntervalMs));
+
+		//Polling faster than the TV answers only skips reads
+		target = Math.max(target, (int) Math.ceil(latencyMs / requestSlots));
+		target = Math.min(Math.max(target, this.minIntervalMs), this.maxIntervalMs);
+
+		boolean limit = target == this.minIntervalMs || target == this.maxIntervalMs;
+		if (limit || Math.abs(target - this.intervalMs) >= this.intervalMs * HYSTERESIS)
+			this.intervalMs = target;
+		return this.intervalMs;
+	}
+
+	public int getIntervalMs() {
+		return this.intervalMs;
+	}
+	public float getMotion() {
+		return this.motion;
+	}
+
+	private float measureMotion(AmbilightData frame) {
+		int size = frame.getSize();
+		if (!this.hasPrevious || size == 0)
+			return 0;
+		if (size != this.previous.getSize())
+			return FAST_MOTION;
+
+		byte[] current = frame.getBuffer();
+		byte[] previous = this.previous.getBuffer();
+		long difference = 0;
+		for (int i = 0; i < size; i++)
+			difference += Math.abs((current[i] & 0xFF) - (previous[i] & 0xFF));
+		return (float) difference / size;
+	}
+}
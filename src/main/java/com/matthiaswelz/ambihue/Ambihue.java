@@ -1,74 +1,100 @@
 package com.matthiaswelz.ambihue;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-public class Ambihue {
+public class Ambihue implements AutoCloseable {
 	static Logger logger = LogManager.getLogger();
 	
-	private final Timer ambilightReadTimer;
-	private final AmbilightReader reader;
+	private final String name;
+	private final TickScheduler scheduler;
+	private final AmbilightPoller poller;
 	private final HueController hueController;
-	private final Thread hueSetThread;
+	private final LightOutput output;
+	private final FramePipeline pipeline;
+	private Thread hueSetThread;
 	private final List<HueAmbilightMapping> associations;
 	private final int intervalMs;
+	private final int maxRequestsInFlight;
+	private AdaptiveInterval adaptiveInterval;
 
-	private final AtomicReference<AmbilightData> data;
-	private final Semaphore semaphore;
+	private final AmbilightFrameBuffer frames;
+	// Held by the refresh thread while setting the colors of a frame
+	private final Object refreshLock;
 	private final AtomicBoolean running;
 	
-	public Ambihue(AmbilightReader ambilightReader, HueController hueController, int intervalMs) {
+	private volatile TickScheduler.Ticker readTicker;
+	private TickScheduler.Ticker outputTicker;
+	
+	// The name tells instances sharing a bridge apart, it may be null if there is only one instance
+	public Ambihue(String name, AmbilightReader ambilightReader, HueController hueController, LightOutput output, FramePipeline pipeline, TickScheduler scheduler, int intervalMs, int maxRequestsInFlight) {
 		logger.trace("Ambihue constructor");
 		
 		assert ambilightReader != null;
 		assert hueController != null;
+		assert output != null;
+		assert pipeline != null;
+		assert scheduler != null;
 		assert intervalMs > 0;
 		
+		this.name = name;
 		this.hueController = hueController;
+		this.output = output;
+		this.pipeline = pipeline;
+		this.scheduler = scheduler;
 		this.intervalMs = intervalMs;
-		this.reader = ambilightReader;
+		this.maxRequestsInFlight = maxRequestsInFlight;
 		
-		this.semaphore = new Semaphore(0);
-		this.data = new AtomicReference<AmbilightData>(null);
+		this.refreshLock = new Object();
+		this.frames = new AmbilightFrameBuffer();
+		this.poller = new AmbilightPoller(ambilightReader, this.frames, maxRequestsInFlight);
 		this.associations = new ArrayList<HueAmbilightMapping>();
 		this.running = new AtomicBoolean(false);
 		
-		this.ambilightReadTimer = new Timer(true);
-		
-		this.hueSetThread = new Thread(new Runnable() {
+		logger.trace("Starting thread");
+		this.hueSetThread = Threads.start("hue-refresh", new Runnable() {
 			@Override
 			public void run() {
 				try {
 					Ambihue.this.refreshHue();
+				} catch (InterruptedException e) {
+					logger.debug("Refresh thread interrupted");
 				} catch (Exception e) {
 					System.err.println(e);
 				}
 			}
 		});
-		this.hueSetThread.setDaemon(true);
+	}
+	
+	// Resolves the LEDs of the mappings against the expected layout of the ambilight, before the first frame
+	// is read. Only while not running
+	public void prepareLayout(AmbilightData layout) {
+		assert !this.running.get();
 		
-		logger.trace("Starting thread");
-		this.hueSetThread.start();
+		for (HueAmbilightMapping association : this.associations)
+			association.prepareLayout(layout);
 	}
 	
 	public void start() {		
 		logger.debug("Start request");
 		
 		if (this.running.compareAndSet(false, true)) {
-			logger.info("Starting");
+			logger.info("Starting " + this);
+			
+			this.hueController.resolveLights();
 			
 			for (HueAmbilightMapping association : this.associations) {
-				association.prepareLight(hueController);
+				association.prepareLight(hueController, this.name);
 			}
 			
+			if (this.adaptiveInterval != null)
+				this.adaptiveInterval.reset();
+			this.poller.resetStatistics();
 			this.scheduleRefresh();
 		}
 	}
@@ -77,41 +103,87 @@ public class Ambihue {
 		
 		assert this.running.get();
 		
-		this.ambilightReadTimer.schedule(new TimerTask() {
+		this.readTicker = this.scheduler.scheduleAtFixedRate(this.getTaskName("ambilight-read"), intervalMs, intervalMs, new Runnable() {
 			@Override
 			public void run() {
-				try {
-					Ambihue.this.readAmbilight();
-				} catch (Exception e) {
-					logger.error("Error reading ambilight value", e);
-				}
+				Ambihue.this.readAmbilight();
 			}
-		}, intervalMs);
+		});
+		
+		if (this.pipeline.isInterpolating()) {
+			int outputIntervalMs = this.pipeline.getOutputIntervalMs();
+			this.outputTicker = this.scheduler.scheduleAtFixedRate(this.getTaskName("hue-output"), outputIntervalMs, outputIntervalMs, new Runnable() {
+				@Override
+				public void run() {
+					//Wakes the refresh thread for showing interpolated frames
+					Ambihue.this.frames.wakeUp();
+				}
+			});
+		}
 	}
 
 	public void stop() throws Exception {
 		logger.debug("Stop request");
 		
 		if (this.running.compareAndSet(true, false)) {
-			logger.info("Stopping");
+			logger.info("Stopping " + this);
 			
-			logger.debug("Waiting to reset lights");
-			//Wait until one refresh-Loop has completed
-			this.semaphore.acquire();
-
-			logger.debug("Resetting lights");
-			for (HueAmbilightMapping association : this.associations) {
-				association.unprepareLight(hueController);
+			this.readTicker.cancel();
+			logger.info("Read statistics: " + this.readTicker);
+			if (this.outputTicker != null) {
+				this.outputTicker.cancel();
+				logger.info("Output statistics: " + this.outputTicker);
+				this.outputTicker = null;
 			}
-			logger.debug("Lights resetted");
 			
-			this.semaphore.release();
+			logger.debug("Waiting to reset lights");
+			//Once the lock is held, a running refresh has completed and no new one starts
+			synchronized (this.refreshLock) {
+				//Restores are queued and sent by the command scheduler of the bridge, so stopping does not wait for them
+				logger.debug("Resetting lights");
+				for (HueAmbilightMapping association : this.associations) {
+					association.unprepareLight(hueController);
+				}
+				logger.debug("Lights queued for resetting");
+			}
 		}
 	}
 	
+	// Stops and ends the refresh thread
+	@Override
+	public void close() throws Exception {
+		logger.trace("close()");
+		
+		this.stop();
+		
+		this.frames.close();
+		this.hueSetThread.join();
+		this.poller.close();
+	}
+	
 	public boolean isRunning() {
 		return this.running.get();
 	}
+	
+	// Reads the ambilight faster in scenes with more motion instead of at a fixed interval
+	public void setAdaptiveInterval(AdaptiveInterval adaptiveInterval) {
+		logger.debug("Adapting read interval");
+		
+		assert !this.running.get();
+		
+		this.adaptiveInterval = adaptiveInterval;
+	}
+	
+	// Records every frame read from the TV, null stops recording
+	public void setRecorder(FrameRecording.Writer recorder) {
+		logger.debug("Recording frames");
+		
+		this.poller.setRecorder(recorder);
+	}
+	
+	public List<HueAmbilightMapping> getAssociations() {
+		return Collections.unmodifiableList(this.associations);
+	}
 
 	public void addAssociation(HueAmbilightMapping association) {
 		logger.debug("Adding association " + association);
@@ -124,48 +196,64 @@ public class Ambihue {
 	private void refreshHue() throws Exception {
 		logger.debug("refresh thread running");
 		
-		while (true) { 
+		while (!this.frames.isClosed()) { 
 			logger.trace("RefreshHue Loop - begin");
 			
-			//Allow stopping at this point
-			this.semaphore.release();
-			logger.trace("Semaphore released");
-			this.semaphore.acquire(2);
-			logger.trace("Semaphore acquired");
-			
-			AmbilightData data = this.data.getAndSet(null);
-			logger.trace("Data read " + data);
-			if (data == null)
-				continue;
-
-			if (!this.running.get())
-				continue;
+			//Returns on a new frame, or without one if woken up for interpolation or closing
+			AmbilightData frame = this.frames.awaitLatest();
+			logger.trace("Data read {}", frame);
+			if (frame != null)
+				Metrics.record(Metrics.Stage.QueueWait, frame.getTimestamp());
 			
-			logger.trace("Setting colors " + data);
-			for (HueAmbilightMapping association : associations)
-				association.apply(hueController, data);
+			synchronized (this.refreshLock) {
+				if (!this.running.get())
+					continue;
+				
+				if (frame != null && this.adaptiveInterval != null)
+					this.adaptInterval(frame);
+				
+				AmbilightData data = this.pipeline.process(frame, System.nanoTime());
+				if (data == null)
+					continue;
+				
+				logger.trace("Setting colors {}", data);
+				for (HueAmbilightMapping association : associations)
+					association.apply(output, data);
+				output.flush();
+			}
 		}
+		
+		logger.debug("refresh thread ended");
 	}
 
-	private void readAmbilight() throws Exception {
+	private void adaptInterval(AmbilightData frame) {
+		TickScheduler.Ticker readTicker = this.readTicker;
+		if (readTicker == null)
+			return;
+		
+		int intervalMs = this.adaptiveInterval.update(frame, this.poller.getLatencyMs(), this.maxRequestsInFlight);
+		if (intervalMs != readTicker.getPeriodMs()) {
+			logger.debug("{}: Reading every {} ms (motion {})", this, intervalMs, this.adaptiveInterval.getMotion());
+			readTicker.setPeriodMs(intervalMs);
+		}
+	}
+	
+	private String getTaskName(String task) {
+		return this.name != null ? task + "-" + this.name : task;
+	}
+	
+	private void readAmbilight() {
 		logger.trace("readAmbilight");
 		
 		if (!this.running.get())
 			return;
 		
-		AmbilightData data = this.reader.tryReadColors();
-		logger.trace("Data read");
-		
-		if (data != null) {
-			logger.trace("Data not null");
-			
-			this.data.set(data);
-			this.semaphore.release();
-		} else {
-			logger.debug("Read null value");
-		}
-		
-		if (this.running.get())
-			this.scheduleRefresh();
+		//Only starts the request - the frame is handed over by the poller once it has been read
+		this.poller.poll();
+	}
+
+	@Override
+	public String toString() {
+		return this.name != null ? "Ambihue " + this.name : "Ambihue";
 	}
 }
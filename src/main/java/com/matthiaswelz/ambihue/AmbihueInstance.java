@@ -0,0 +1,187 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.matthiaswelz.ambihue.AmbilightReader.TVOffListenr;
+
+// One TV and the lights showing its ambilight. Instances using the same bridge share its HueController,
+// all instances share the scheduler
+public class AmbihueInstance implements AutoCloseable {
+	static Logger logger = LogManager.getLogger();
+
+	private final AmbilightReader reader;
+	private final Ambihue ambihue;
+	// Null when colors are sent to the bridge by the HueController
+	private final HueStreamingOutput streamingOutput;
+	private final TVMonitor monitor;
+	private final FrameRecording.Writer recorder;
+	private final TopologyCache topologyCache;
+	private final String tvIP;
+	private final int tvPort;
+
+	// The topology cache (or null) provides the LED layout of the TV from earlier runs, and learns its current one
+	public AmbihueInstance(Parameters parameters, TickScheduler scheduler, HueController hueController, TopologyCache topologyCache) throws Exception {
+		logger.trace("AmbihueInstance()");
+
+		assert parameters != null;
+		assert scheduler != null;
+		assert hueController != null;
+
+		//Checked before the refresh thread would fail on the first color of a light too many
+		if (parameters.output == LightOutput.Type.Streaming && parameters.mappings.size() > HueStreamingOutput.MAX_LIGHTS)
+			throw new IllegalArgumentException("Streaming supports at most " + HueStreamingOutput.MAX_LIGHTS + " lights, " + parameters.mappings.size() + " are mapped");
+
+		//Parsed before any thread or connection is created, so an invalid mapping leaks nothing
+		logger.debug("Parsing mappings");
+		List<HueAmbilightMapping> associations = new ArrayList<HueAmbilightMapping>();
+		for (String mapping : parameters.mappings) {
+			logger.debug("Parsing mapping " + mapping);
+
+			HueAmbilightMapping association;
+			try {
+				association = HueAmbilightMapping.parse(mapping);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid mapping: " + mapping, e);
+			}
+			if (association == null)
+				throw new IllegalArgumentException("Invalid mapping: " + mapping);
+			associations.add(association);
+		}
+
+		this.topologyCache = topologyCache;
+		this.tvIP = parameters.tvIP;
+		this.tvPort = parameters.tvPort;
+
+		//A failure after the first thread or connection was created closes what exists so far
+		try {
+			logger.debug("Creating ambilightReader");
+			this.reader = new AmbilightReader(parameters.tvIP, parameters.tvPort, parameters.ambilightTimeoutMS, parameters.tvOffDelay, parameters.ambilightParser, parameters.ambilightRequests);
+			this.reader.addTVProbablyOffListenr(new TVOffListenr() {
+				@Override
+				public void tvProbablyOff() {
+					AmbihueInstance.this.tvProbablyOff();
+				}
+			});
+
+			LightOutput output = hueController;
+			if (parameters.output == LightOutput.Type.Streaming) {
+				String host = parameters.streamingHost != null ? parameters.streamingHost : parameters.hueIP;
+				logger.debug("Creating streaming output to " + host + ":" + parameters.streamingPort);
+				this.streamingOutput = new HueStreamingOutput(hueController, host, parameters.streamingPort);
+				output = this.streamingOutput;
+			} else {
+				this.streamingOutput = null;
+			}
+
+			logger.debug("Creating frame pipeline");
+			FramePipeline pipeline = new FramePipeline(parameters.outputIntervalMs);
+			if (parameters.medianFrames > 1)
+				pipeline.addFilter(new MedianFilter(parameters.medianFrames));
+			if (parameters.smoothing > 0 && parameters.smoothing < 1)
+				pipeline.addFilter(new SmoothingFilter(parameters.smoothing));
+
+			logger.debug("Creating Ambihue");
+			this.ambihue = new Ambihue(parameters.name, this.reader, hueController, output, pipeline, scheduler, parameters.interval, parameters.ambilightRequests);
+			for (HueAmbilightMapping association : associations) {
+				this.ambihue.addAssociation(association);
+				logger.debug("Mapping added: " + association);
+			}
+
+			if (parameters.adaptiveInterval) {
+				//Reading faster than the bridge accepts commands does not show more colors
+				int minIntervalMs = parameters.minIntervalMs;
+				if (parameters.output == LightOutput.Type.Rest)
+					minIntervalMs = Math.max(minIntervalMs, 1000 / parameters.bridgeCommandRate);
+				int maxIntervalMs = Math.max(parameters.maxIntervalMs, minIntervalMs);
+
+				logger.debug("Adapting interval between " + minIntervalMs + " and " + maxIntervalMs + " ms");
+				this.ambihue.setAdaptiveInterval(new AdaptiveInterval(minIntervalMs, maxIntervalMs, parameters.interval));
+			}
+
+			if (parameters.record != null) {
+				logger.info("Recording frames to " + parameters.record);
+				this.recorder = new FrameRecording.Writer(parameters.record);
+				this.ambihue.setRecorder(this.recorder);
+			} else {
+				this.recorder = null;
+			}
+
+			this.monitor = new TVMonitor(parameters.name, parameters.tvIP, parameters.tvPort, parameters.ambilightTimeoutMS, this.reader, scheduler,
+					parameters.tvCheckMinIntervalMs, Math.max(parameters.tvCheckIntervalMs, parameters.tvCheckMinIntervalMs), new TVMonitor.Listener() {
+						@Override
+						public void tvOn(AmbilightData frame) {
+							AmbihueInstance.this.tvOn(frame);
+						}
+					});
+
+			AmbilightData layout = topologyCache != null ? topologyCache.getLayout(parameters.tvIP, parameters.tvPort) : null;
+			if (layout != null) {
+				logger.debug("Preparing mappings for the cached LED layout of TV " + parameters.tvIP);
+				this.ambihue.prepareLayout(layout);
+			}
+		} catch (Exception e) {
+			this.close();
+			throw e;
+		}
+	}
+
+	public List<HueAmbilightMapping> getAssociations() {
+		return this.ambihue.getAssociations();
+	}
+
+	// Starts waiting for the TV. The lights have to be known - from the connected bridge, or preloaded from the topology cache
+	public void start() {
+		logger.info(this.ambihue + ": Waiting for TV to be turned on");
+		this.monitor.start();
+	}
+
+	@Override
+	public void close() throws Exception {
+		logger.trace("close()");
+
+		//Null while the constructor failed
+		if (this.monitor != null)
+			this.monitor.close();
+		if (this.ambihue != null)
+			this.ambihue.close();
+		if (this.reader != null)
+			this.reader.close();
+		//Only once the refresh thread has ended, which sends to the output
+		if (this.streamingOutput != null)
+			this.streamingOutput.close();
+		if (this.recorder != null) {
+			logger.info("Recorded " + this.recorder.getFrames() + " frames");
+			this.recorder.close();
+		}
+	}
+
+	private void tvOn(AmbilightData frame) {
+		if (this.topologyCache != null) {
+			this.topologyCache.setLayout(this.tvIP, this.tvPort, frame);
+			this.topologyCache.save();
+		}
+
+		logger.info("TV on - starting " + this.ambihue);
+		this.ambihue.start();
+	}
+
+	private void tvProbablyOff() {
+		logger.debug("Received tvProbablyOff notification");
+		if (!this.ambihue.isRunning())
+			return;
+
+		logger.info("TV off - stopping " + this.ambihue);
+		try {
+			this.ambihue.stop();
+		} catch (Exception e) {
+			logger.catching(e);
+		}
+
+		logger.info(this.ambihue + ": Waiting for TV to be turned on again");
+		this.monitor.start();
+	}
+}
@@ -0,0 +1,392 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// A persistent HTTP/1.1 connection to the TV, sending the same GET request over and over.
+// The response is read through one reusable buffer and handed to the parser as a stream over
+// the body (Content-Length, chunked or until close), so reading a frame does not allocate:
+// no request objects, no header objects and no strings. Not thread safe - one connection per request in flight.
+final class AmbilightConnection implements AutoCloseable {
+	static Logger logger = LogManager.getLogger();
+
+	private final static int BUFFER_SIZE = 8192;
+	private final static int MAX_LINE = 256;
+	private final static byte[] CONTENT_LENGTH = bytes("content-length");
+	private final static byte[] TRANSFER_ENCODING = bytes("transfer-encoding");
+	private final static byte[] CONNECTION = bytes("connection");
+	private final static byte[] CHUNKED = bytes("chunked");
+	private final static byte[] CLOSE = bytes("close");
+
+	// Body of the current response
+	private final class Body extends InputStream {
+		private boolean chunked;
+		// Bytes left in the body or the current chunk, -1 if the body ends with the connection
+		private long remaining;
+		private boolean finished;
+
+		private void start(boolean chunked, long length) {
+			this.chunked = chunked;
+			this.remaining = chunked ? 0 : length;
+			this.finished = !chunked && length == 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!this.fillBody())
+				return -1;
+
+			AmbilightConnection connection = AmbilightConnection.this;
+			int result = connection.buffer[connection.position++] & 0xFF;
+			this.consumed(1);
+			return result;
+		}
+
+		@Override
+		public int read(byte[] target, int offset, int length) throws IOException {
+			if (length == 0)
+				return 0;
+			if (!this.fillBody())
+				return -1;
+
+			AmbilightConnection connection = AmbilightConnection.this;
+			int count = connection.limit - connection.position;
+			if (count > length)
+				count = length;
+			if (this.remaining >= 0 && count > this.remaining)
+				count = (int) this.remaining;
+
+			System.arraycopy(connection.buffer, connection.position, target, offset, count);
+			connection.position += count;
+			this.consumed(count);
+			return count;
+		}
+
+		// Reads the rest of the body, so the next response can be read from the connection
+		private void skipRemaining() throws IOException {
+			AmbilightConnection connection = AmbilightConnection.this;
+			while (this.fillBody()) {
+				int count = connection.limit - connection.position;
+				if (this.remaining >= 0 && count > this.remaining)
+					count = (int) this.remaining;
+				connection.position += count;
+				this.consumed(count);
+			}
+		}
+
+		// Makes sure the buffer holds bytes of the body, returns false at the end of the body
+		private boolean fillBody() throws IOException {
+			AmbilightConnection connection = AmbilightConnection.this;
+			if (this.finished)
+				return false;
+
+			if (this.chunked && this.remaining == 0) {
+				this.remaining = connection.readChunkSize();
+				if (this.remaining == 0) {
+					//Last chunk - skip the trailers
+					while (connection.readLine() > 0);
+					this.finished = true;
+					return false;
+				}
+			}
+
+			if (connection.position == connection.limit && !connection.fill()) {
+				if (this.remaining >= 0)
+					throw new EOFException("Connection closed before end of ambilight response");
+				this.finished = true;
+				return false;
+			}
+			return true;
+		}
+
+		private void consumed(int count) throws IOException {
+			if (this.remaining < 0)
+				return;
+
+			this.remaining -= count;
+			if (this.remaining > 0)
+				return;
+
+			if (this.chunked)
+				AmbilightConnection.this.expectLineEnd();
+			else
+				this.finished = true;
+		}
+	}
+
+	private final String host;
+	private final int port;
+	private final int timeoutMs;
+	private final byte[] request;
+	private final AmbilightParser parser;
+
+	private final byte[] buffer;
+	private final byte[] line;
+	private final Body body;
+
+	private Socket socket;
+	private InputStream input;
+	private OutputStream output;
+	private int position;
+	private int limit;
+
+	AmbilightConnection(String host, int port, String path, int timeoutMs, AmbilightParser parser) {
+		assert parser != null;
+
+		this.host = host;
+		this.port = port;
+		this.timeoutMs = timeoutMs;
+		this.parser = parser;
+		this.request = bytes("GET " + path + " HTTP/1.1\r\n"
+				+ "Host: " + host + ":" + port + "\r\n"
+				+ "Accept: application/json\r\n"
+				+ "\r\n");
+
+		this.buffer = new byte[BUFFER_SIZE];
+		this.line = new byte[MAX_LINE];
+		this.body = new Body();
+	}
+
+	// Reads the ambilight into target. Throws if the TV does not answer with a valid response,
+	// the connection should be closed then
+	void read(AmbilightData target) throws Exception {
+		long start = System.nanoTime();
+		boolean reused = this.socket != null;
+		int status;
+		try {
+			status = this.sendRequest();
+		} catch (IOException e) {
+			//The TV might have closed an idle connection - retry once with a new one
+			if (!reused || e instanceof SocketTimeoutException)
+				throw e;
+
+			this.close();
+			start = System.nanoTime();
+			status = this.sendRequest();
+		}
+		boolean keepAlive = this.readHeaders();
+		Metrics.record(Metrics.Stage.Response, start);
+
+		if (status != 200) {
+			this.close();
+			throw new IOException("Ambilight request failed with HTTP status " + status);
+		}
+
+		long parseStart = System.nanoTime();
+		this.parser.parse(this.body, target);
+		this.body.skipRemaining();
+		Metrics.record(Metrics.Stage.Parse, parseStart);
+
+		if (!keepAlive)
+			this.close();
+	}
+
+	@Override
+	public void close() {
+		if (this.socket == null)
+			return;
+
+		try {
+			this.socket.close();
+		} catch (IOException e) {
+			logger.trace("Closing connection failed", e);
+		}
+		this.socket = null;
+		this.input = null;
+		this.output = null;
+	}
+
+	// Sends the request and reads the status line of the response
+	private int sendRequest() throws IOException {
+		if (this.socket == null)
+			this.connect();
+
+		this.output.write(this.request);
+		this.output.flush();
+
+		int length = this.readLine();
+		byte[] line = this.line;
+		if (length < 12 || line[0] != 'H' || line[1] != 'T' || line[2] != 'T' || line[3] != 'P' || line[4] != '/')
+			throw new IOException("Invalid status line in ambilight response");
+
+		int status = 0;
+		for (int i = 9; i < 12; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9)
+				throw new IOException("Invalid status line in ambilight response");
+			status = status * 10 + digit;
+		}
+		return status;
+	}
+
+	// Reads the headers and prepares the body, returns whether the connection can be reused
+	private boolean readHeaders() throws IOException {
+		//HTTP/1.0 closes connections by default
+		boolean keepAlive = this.line[7] != '0';
+		boolean chunked = false;
+		long length = -1;
+
+		int lineLength;
+		while ((lineLength = this.readLine()) > 0) {
+			int colon = indexOf(this.line, lineLength, ':');
+			if (colon < 0)
+				continue;
+
+			int value = colon + 1;
+			while (value < lineLength && (this.line[value] == ' ' || this.line[value] == '\t'))
+				value++;
+
+			if (nameEquals(this.line, colon, CONTENT_LENGTH)) {
+				length = parseLong(this.line, value, lineLength);
+			} else if (nameEquals(this.line, colon, TRANSFER_ENCODING)) {
+				chunked = contains(this.line, value, lineLength, CHUNKED);
+			} else if (nameEquals(this.line, colon, CONNECTION)) {
+				keepAlive = !contains(this.line, value, lineLength, CLOSE);
+			}
+		}
+
+		//Without a length, the body ends with the connection
+		if (!chunked && length < 0)
+			keepAlive = false;
+
+		this.body.start(chunked, length);
+		return keepAlive;
+	}
+
+	private long readChunkSize() throws IOException {
+		int length = this.readLine();
+		if (length == 0)
+			throw new IOException("Missing chunk size in ambilight response");
+
+		long size = 0;
+		for (int i = 0; i < length; i++) {
+			int c = this.line[i];
+			int digit;
+			if (c >= '0' && c <= '9')
+				digit = c - '0';
+			else if (c >= 'a' && c <= 'f')
+				digit = c - 'a' + 10;
+			else if (c >= 'A' && c <= 'F')
+				digit = c - 'A' + 10;
+			else if (i > 0 && (c == ';' || c == ' '))
+				break;
+			else
+				throw new IOException("Invalid chunk size in ambilight response");
+			size = size * 16 + digit;
+		}
+		return size;
+	}
+
+	// Reads a line into the line buffer, returns its length without the line end.
+	// Longer lines are cut, they are only needed for headers which are ignored anyway
+	private int readLine() throws IOException {
+		int length = 0;
+		while (true) {
+			if (this.position == this.limit && !this.fill())
+				throw new EOFException("Connection closed during ambilight response");
+
+			byte c = this.buffer[this.position++];
+			if (c == '\n')
+				break;
+			if (length < MAX_LINE)
+				this.line[length] = c;
+			length++;
+		}
+
+		length = Math.min(length, MAX_LINE);
+		if (length > 0 && this.line[length - 1] == '\r')
+			length--;
+		return length;
+	}
+
+	private void expectLineEnd() throws IOException {
+		if (this.readLine() != 0)
+			throw new IOException("Missing line end after chunk in ambilight response");
+	}
+
+	private boolean fill() throws IOException {
+		int count = this.input.read(this.buffer, 0, this.buffer.length);
+		if (count <= 0)
+			return false;
+
+		this.position = 0;
+		this.limit = count;
+		return true;
+	}
+
+	private void connect() throws IOException {
+		long start = System.nanoTime();
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(this.timeoutMs);
+			socket.connect(new InetSocketAddress(this.host, this.port), this.timeoutMs);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		Metrics.record(Metrics.Stage.Connect, start);
+
+		this.socket = socket;
+		this.input = socket.getInputStream();
+		this.output = socket.getOutputStream();
+		this.position = 0;
+		this.limit = 0;
+	}
+
+	private static boolean nameEquals(byte[] line, int length, byte[] lowerCaseName) {
+		if (length != lowerCaseName.length)
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			if (toLowerCase(line[i]) != lowerCaseName[i])
+				return false;
+		}
+		return true;
+	}
+	private static boolean contains(byte[] line, int from, int to, byte[] lowerCaseToken) {
+		for (int i = from; i <= to - lowerCaseToken.length; i++) {
+			int j = 0;
+			while (j < lowerCaseToken.length && toLowerCase(line[i + j]) == lowerCaseToken[j])
+				j++;
+			if (j == lowerCaseToken.length)
+				return true;
+		}
+		return false;
+	}
+	private static int indexOf(byte[] line, int length, char c) {
+		for (int i = 0; i < length; i++) {
+			if (line[i] == c)
+				return i;
+		}
+		return -1;
+	}
+	private static long parseLong(byte[] line, int from, int to) throws IOException {
+		if (from >= to)
+			throw new IOException("Invalid Content-Length in ambilight response");
+
+		long result = 0;
+		for (int i = from; i < to; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9)
+				break;
+			result = result * 10 + digit;
+		}
+		return result;
+	}
+	private static byte toLowerCase(byte c) {
+		return c >= 'A' && c <= 'Z' ? (byte) (c + ('a' - 'A')) : c;
+	}
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -1,55 +1,174 @@
 package com.matthiaswelz.ambihue;
 
-import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
 
-public final class AmbilightData {
+// A single ambilight frame. All LEDs are stored in one flat RGB buffer (3 bytes per LED),
+// the positions are laid out one after another. Instances are meant to be reused.
+// Log messages format frames into the buffers of the logger, without allocating.
+public final class AmbilightData implements StringBuilderFormattable {
 	public enum Position {
 		Left, Top, Right, Bottom
 	}
-	
-	private Color[][] colors;
-	
-	public AmbilightData(Color[] left, Color[] top, Color[] right, Color[] bottom) {
-		this.colors = new Color[4][];
-		
-		this.colors[Position.Left.ordinal()] = left;
-		this.colors[Position.Top.ordinal()] = top;
-		this.colors[Position.Right.ordinal()] = right;
-		this.colors[Position.Bottom.ordinal()] = bottom;
+
+	private final static int POSITIONS = Position.values().length;
+	private final static String[] NAMES = { "left", "top", "right", "bottom" };
+
+	private final int[] offsets;
+	private final int[] dimensions;
+	private byte[] rgb;
+	private long timestamp;
+
+	public AmbilightData() {
+		this.offsets = new int[POSITIONS];
+		this.dimensions = new int[POSITIONS];
+		this.rgb = new byte[3 * 32];
 	}
-	
-	public boolean hasPosition(Position position) {		
-		Color[] colors = this.getColorsAtPosition(position);
-		
-		return colors != null && colors.length > 0;
+
+	// Same number of LEDs at every position. Frames of the same size may still place the LEDs elsewhere in the buffer
+	public boolean hasSameLayout(AmbilightData other) {
+		return this.hasLayout(other.dimensions);
+	}
+	// Compares with dimensions saved by copyLayout
+	boolean hasLayout(int[] layout) {
+		assert layout.length == POSITIONS;
+
+		for (int i = 0; i < POSITIONS; i++) {
+			if (this.dimensions[i] != layout[i])
+				return false;
+		}
+		return true;
+	}
+	// Saves the dimensions of all positions, indexed by ordinal
+	void copyLayout(int[] layout) {
+		assert layout.length == POSITIONS;
+
+		System.arraycopy(this.dimensions, 0, layout, 0, POSITIONS);
+	}
+
+	public boolean hasPosition(Position position) {
+		return this.getDimension(position) > 0;
 	}
 	public int getDimension(Position position) {
-		Color[] colors = this.getColorsAtPosition(position);
-		
-		if (colors == null)
-			return 0;
-		
-		return colors.length;
-	}
-	public Color getColor(Position position, int index) {
+		return this.dimensions[position.ordinal()];
+	}
+	public int getRed(Position position, int index) {
+		return this.rgb[this.indexOf(position, index)] & 0xFF;
+	}
+	public int getGreen(Position position, int index) {
+		return this.rgb[this.indexOf(position, index) + 1] & 0xFF;
+	}
+	public int getBlue(Position position, int index) {
+		return this.rgb[this.indexOf(position, index) + 2] & 0xFF;
+	}
+
+	public void copyFrom(AmbilightData other) {
+		assert other != null;
+
+		this.resize(other.dimensions[0], other.dimensions[1], other.dimensions[2], other.dimensions[3]);
+		System.arraycopy(other.rgb, 0, this.rgb, 0, this.getSize());
+		this.timestamp = other.timestamp;
+	}
+	
+	// Time (System.nanoTime()) the frame was read from the TV
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+	void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	void resize(int left, int top, int right, int bottom) {
+		this.dimensions[Position.Left.ordinal()] = left;
+		this.dimensions[Position.Top.ordinal()] = top;
+		this.dimensions[Position.Right.ordinal()] = right;
+		this.dimensions[Position.Bottom.ordinal()] = bottom;
+
+		int offset = 0;
+		for (int i = 0; i < POSITIONS; i++) {
+			this.offsets[i] = offset;
+			offset += 3 * this.dimensions[i];
+		}
+
+		if (this.rgb.length < offset)
+			this.rgb = new byte[offset];
+	}
+	// The flat RGB buffer, only the first getSize() bytes are valid. Allows processing frames in place
+	byte[] getBuffer() {
+		return this.rgb;
+	}
+	int getSize() {
+		int last = POSITIONS - 1;
+		return this.offsets[last] + 3 * this.dimensions[last];
+	}
+	// Position of the LED in the flat RGB buffer, for use with averageColor
+	int getOffset(Position position, int index) {
+		return this.indexOf(position, index);
+	}
+	// Weighted average of the LEDs at the given offsets, packed as 0xRRGGBB.
+	// The weights must add up to totalWeight, which must not exceed 2^23
+	int averageColor(int[] offsets, int[] weights, int count, int totalWeight) {
+		assert offsets.length >= count && weights.length >= count;
+		assert totalWeight > 0;
+
+		byte[] rgb = this.rgb;
+		int r = 0, g = 0, b = 0;
+		for (int i = 0; i < count; i++) {
+			int offset = offsets[i];
+			int weight = weights[i];
+			r += (rgb[offset] & 0xFF) * weight;
+			g += (rgb[offset + 1] & 0xFF) * weight;
+			b += (rgb[offset + 2] & 0xFF) * weight;
+		}
+
+		int half = totalWeight / 2;
+		return (r + half) / totalWeight << 16 | (g + half) / totalWeight << 8 | (b + half) / totalWeight;
+	}
+	void setColor(Position position, int index, int r, int g, int b) {
+		int i = this.indexOf(position, index);
+		this.rgb[i] = (byte) r;
+		this.rgb[i + 1] = (byte) g;
+		this.rgb[i + 2] = (byte) b;
+	}
+	void setColors(Position position, byte[] source) {
+		assert source.length >= 3 * this.getDimension(position);
+
+		System.arraycopy(source, 0, this.rgb, this.offsets[position.ordinal()], 3 * this.getDimension(position));
+	}
+
+	private int indexOf(Position position, int index) {
 		assert hasPosition(position);
 		assert getDimension(position) > index;
-		
-		Color[] colors = this.getColorsAtPosition(position);
-		return colors[index];
+
+		return this.offsets[position.ordinal()] + 3 * index;
 	}
-	
-	private Color[] getColorsAtPosition(Position position) {
-		return this.colors[position.ordinal()];
+
+	@Override
+	public void formatTo(StringBuilder buffer) {
+		buffer.append("AmbilightData[");
+		for (int i = 0; i < POSITIONS; i++) {
+			if (i > 0)
+				buffer.append(',');
+			buffer.append(NAMES[i]).append("=[");
+
+			int offset = this.offsets[i];
+			for (int led = 0; led < this.dimensions[i]; led++, offset += 3) {
+				if (led > 0)
+					buffer.append(", ");
+
+				buffer.append('(')
+					.append(this.rgb[offset] & 0xFF).append(',')
+					.append(this.rgb[offset + 1] & 0xFF).append(',')
+					.append(this.rgb[offset + 2] & 0xFF).append(')');
+			}
+			buffer.append(']');
+		}
+		buffer.append(']');
 	}
-	
+
 	@Override
 	public String toString() {
-		return new ToStringBuilder(this)
-				.append("left", getColorsAtPosition(Position.Left), true)
-				.append("top", getColorsAtPosition(Position.Top), true)
-				.append("right", getColorsAtPosition(Position.Right), true)
-				.append("bottom", getColorsAtPosition(Position.Bottom), true)
-				.build();
+		StringBuilder result = new StringBuilder();
+		this.formatTo(result);
+		return result.toString();
 	}
 }
@@ -0,0 +1,96 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Triple buffer handing frames from the reading thread to the hue thread.
+// The writer fills getWriteFrame() and publishes it, the reader takes the latest published
+// frame. Neither side ever touches the frame owned by the other, and no frames are allocated
+// after construction. Unread frames are overwritten by newer ones.
+// The reader can block in awaitLatest() - it is unparked by the next publish(), wakeUp() or close(),
+// without any locks on either side.
+public final class AmbilightFrameBuffer {
+	private final static int INDEX_MASK = 0x3;
+	private final static int FRESH = 0x4;
+
+	private final AmbilightData[] frames;
+	private final AtomicInteger exchange;
+
+	// Owned by the writing thread
+	private int writeIndex;
+	// Owned by the reading thread
+	private int readIndex;
+	// Set while the reading thread may be parked in awaitLatest
+	private volatile Thread waiter;
+	private volatile boolean closed;
+
+	public AmbilightFrameBuffer() {
+		this.frames = new AmbilightData[] { new AmbilightData(), new AmbilightData(), new AmbilightData() };
+		this.writeIndex = 0;
+		this.readIndex = 1;
+		this.exchange = new AtomicInteger(2);
+	}
+
+	public AmbilightData getWriteFrame() {
+		return this.frames[this.writeIndex];
+	}
+
+	// Returns false if the previously published frame has not been taken and was dropped
+	public boolean publish() {
+		int previous = this.exchange.getAndSet(this.writeIndex | FRESH);
+		this.writeIndex = previous & INDEX_MASK;
+
+		this.wakeUp();
+		return (previous & FRESH) == 0;
+	}
+
+	// Wakes the reading thread if it is waiting in awaitLatest, even if no frame has been published
+	public void wakeUp() {
+		Thread waiter = this.waiter;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+	}
+
+	// Ends waiting in awaitLatest for good - a reader checking isClosed() before waiting cannot miss it
+	public void close() {
+		this.closed = true;
+		this.wakeUp();
+	}
+
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	// Like takeLatest, but waits for a frame to be published if there is none. Returns null
+	// if woken up by wakeUp() (or spuriously) before a frame has been published, or once closed.
+	public AmbilightData awaitLatest() throws InterruptedException {
+		// The waiter is set before checking for a frame (or closing) and the writer checks for a waiter
+		// after publishing (or closing), so either this thread sees the frame or the writer unparks it
+		this.waiter = Thread.currentThread();
+		try {
+			AmbilightData frame = this.takeLatest();
+			if (frame != null || this.closed)
+				return frame;
+
+			LockSupport.park(this);
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+			return this.takeLatest();
+		} finally {
+			this.waiter = null;
+		}
+	}
+
+	// Returns the latest published frame or null if nothing new has been published.
+	// The frame stays valid until the next call.
+	public AmbilightData takeLatest() {
+		if ((this.exchange.get() & FRESH) == 0)
+			return null;
+
+		int previous = this.exchange.getAndSet(this.readIndex);
+		this.readIndex = previous & INDEX_MASK;
+
+		return this.frames[this.readIndex];
+	}
+}
@@ -34,7 +34,7 @@ public class AmbilightInfoProgram {
 	}
 
 	public void run() throws Exception {
-		try (AmbilightReader reader = new AmbilightReader(parameters.tvIP, parameters.ambilightTimeoutMS, parameters.tvOffDelay)) {
+		try (AmbilightReader reader = new AmbilightReader(parameters.tvIP, parameters.tvPort, parameters.ambilightTimeoutMS, parameters.tvOffDelay, parameters.ambilightParser, 1)) {
 			AmbilightData data = reader.tryReadColors();
 			if (data == null) {
 				logger.debug("Received null output");
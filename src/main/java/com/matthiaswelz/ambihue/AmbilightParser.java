@@ -0,0 +1,20 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.InputStream;
+
+public interface AmbilightParser {
+	public enum Type {
+		Streaming, JSON;
+
+		public AmbilightParser create() {
+			switch (this) {
+			case JSON:
+				return new JSONAmbilightParser();
+			default:
+				return new StreamingAmbilightParser();
+			}
+		}
+	}
+
+	void parse(InputStream input, AmbilightData target) throws Exception;
+}
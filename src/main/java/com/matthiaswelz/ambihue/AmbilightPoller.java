@@ -0,0 +1,189 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Reads the ambilight with up to maxInFlight concurrent requests. Every call to poll() starts
+// a new request if a request slot is free, so the frame rate does not depend on the latency of the TV.
+// Responses overtaken by a newer response are discarded.
+public final class AmbilightPoller implements AutoCloseable {
+	static Logger logger = LogManager.getLogger();
+
+	private final static long REPORT_INTERVAL_MS = 30000;
+	// Weight of a new response in the moving average of the latency
+	private final static double LATENCY_SMOOTHING = 0.2;
+
+	private final class Request implements Runnable {
+		private final AmbilightData frame = new AmbilightData();
+		private long sequence;
+		private long started;
+
+		@Override
+		public void run() {
+			try {
+				if (AmbilightPoller.this.reader.tryReadColors(this.frame))
+					AmbilightPoller.this.deliver(this);
+				else
+					logger.debug("Read null value");
+			} catch (Exception e) {
+				logger.error("Error reading ambilight value", e);
+			} finally {
+				AmbilightPoller.this.idleRequests.offer(this);
+			}
+		}
+	}
+
+	private final AmbilightReader reader;
+	private final AmbilightFrameBuffer frames;
+	private final BlockingQueue<Request> idleRequests;
+	private final ExecutorService executor;
+
+	// Set by resetStatistics() on any thread, acted on by the next poll()
+	private volatile boolean resetRequested;
+	// Only modified by the thread calling poll()
+	private long lastSequence;
+	private long skipped;
+	private long reportStart;
+	private volatile double framesPerSecond;
+
+	// Guarded by this
+	private long lastDelivered;
+	private long delivered;
+	private long discarded;
+	private volatile double latencyMs;
+	private FrameRecording.Writer recorder;
+
+	public AmbilightPoller(AmbilightReader reader, AmbilightFrameBuffer frames, int maxInFlight) {
+		logger.trace("AmbilightPoller()");
+
+		assert reader != null;
+		assert frames != null;
+		assert maxInFlight > 0;
+
+		this.reader = reader;
+		this.frames = frames;
+
+		this.idleRequests = new ArrayBlockingQueue<Request>(maxInFlight);
+		for (int i = 0; i < maxInFlight; i++)
+			this.idleRequests.add(new Request());
+
+		// At most maxInFlight requests are ever submitted, so requests never wait for a thread
+		this.executor = Threads.newExecutor("ambilight-reader", maxInFlight);
+	}
+
+	public void poll() {
+		logger.trace("poll()");
+
+		long now = System.currentTimeMillis();
+		if (this.resetRequested) {
+			this.resetRequested = false;
+			this.startReport(now);
+		} else if (this.reportStart == 0) {
+			this.reportStart = now;
+		} else if (now - this.reportStart >= REPORT_INTERVAL_MS) {
+			this.report(now);
+		}
+
+		Request request = this.idleRequests.poll();
+		if (request == null) {
+			logger.trace("All requests in flight - skipping");
+			this.skipped++;
+			Metrics.increment(Metrics.Counter.SkippedReads);
+			return;
+		}
+
+		request.sequence = ++this.lastSequence;
+		request.started = System.nanoTime();
+		this.executor.execute(request);
+	}
+
+	// Restarts the report interval with the next poll(), which may run on another thread
+	public void resetStatistics() {
+		this.resetRequested = true;
+	}
+
+	// Frame rate achieved during the last report interval
+	public double getFramesPerSecond() {
+		return this.framesPerSecond;
+	}
+	// Moving average of the time for reading a frame
+	public double getLatencyMs() {
+		return this.latencyMs;
+	}
+
+	// Appends every delivered frame to the recording, null stops recording
+	public synchronized void setRecorder(FrameRecording.Writer recorder) {
+		this.recorder = recorder;
+	}
+
+	@Override
+	public void close() {
+		logger.trace("close()");
+
+		this.executor.shutdownNow();
+	}
+
+	// Publishing wakes the thread waiting for frames
+	private synchronized void deliver(Request request) {
+		//Discarded responses still tell how fast the TV answers
+		long now = System.nanoTime();
+		double latency = (now - request.started) / 1e6;
+		this.latencyMs = this.latencyMs == 0 ? latency : this.latencyMs + LATENCY_SMOOTHING * (latency - this.latencyMs);
+		
+		if (request.sequence <= this.lastDelivered) {
+			logger.trace("Discarding out of order response");
+			this.discarded++;
+			Metrics.increment(Metrics.Counter.DiscardedResponses);
+			return;
+		}
+
+		this.lastDelivered = request.sequence;
+		this.delivered++;
+
+		AmbilightData frame = this.frames.getWriteFrame();
+		frame.copyFrom(request.frame);
+		frame.setTimestamp(now);
+		if (this.recorder != null)
+			this.record(frame);
+		if (!this.frames.publish())
+			Metrics.increment(Metrics.Counter.DroppedFrames);
+	}
+
+	private void record(AmbilightData frame) {
+		try {
+			this.recorder.write(frame);
+		} catch (Exception e) {
+			//A full disk must not stop the lights
+			logger.error("Recording frames failed - recording stopped", e);
+			this.recorder = null;
+		}
+	}
+
+	private void startReport(long now) {
+		synchronized (this) {
+			this.delivered = 0;
+			this.discarded = 0;
+		}
+		this.skipped = 0;
+		this.reportStart = now;
+	}
+	private void report(long now) {
+		long delivered, discarded;
+		synchronized (this) {
+			delivered = this.delivered;
+			discarded = this.discarded;
+			this.delivered = 0;
+			this.discarded = 0;
+		}
+
+		this.framesPerSecond = delivered * 1000.0 / (now - this.reportStart);
+		logger.info(String.format("Ambilight: %.1f frames/s (%d discarded out of order, %d skipped)", this.framesPerSecond, discarded, this.skipped));
+
+		this.skipped = 0;
+		this.reportStart = now;
+	}
+}
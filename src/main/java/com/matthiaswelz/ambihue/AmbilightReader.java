@@ -1,19 +1,12 @@
 package com.matthiaswelz.ambihue;
 
-import java.net.URI;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.json.JSONObject;
 
 public final class AmbilightReader implements AutoCloseable {
 	static Logger logger = LogManager.getLogger();
@@ -22,37 +15,38 @@ public final class AmbilightReader implements AutoCloseable {
 		void tvProbablyOff();
 	}
 	
-	private final static int AMBILIGHT_PORT = 1925;
+	public final static int DEFAULT_PORT = 1925;
 	private final static String AMBILIGHT_PATH = "/1/ambilight/processed";
 	
-	private final CloseableHttpClient httpClient;
-	private final RequestConfig requestConfig;
-	private final URI uri;
+	private final String host;
+	private final int port;
+	private final int timeoutMs;
+	private final AmbilightParser.Type parserType;
+	// Idle connections, each with its own parser - at most one per concurrent request is kept
+	private final BlockingQueue<AmbilightConnection> connections;
 	private final int tvOffDelayMs;
 	private final List<TVOffListenr> tvOffListeners;
+	private volatile boolean closed;
 	
 	private Long firstFailedRequest;
+	private boolean tvOffNotified;
 	
-	public AmbilightReader(String host, int timeoutInMs, int tvOffDelayMs) throws Exception {	
+	public AmbilightReader(String host, int timeoutInMs, int tvOffDelayMs) throws Exception {
+		this(host, DEFAULT_PORT, timeoutInMs, tvOffDelayMs, AmbilightParser.Type.Streaming, 1);
+	}
+	public AmbilightReader(String host, int port, int timeoutInMs, int tvOffDelayMs, AmbilightParser.Type parserType, int maxConnections) throws Exception {	
 		logger.trace("AmbilightReader()");	
 		
-		this.tvOffDelayMs = tvOffDelayMs;
-		this.tvOffListeners = new ArrayList<>();
-		this.httpClient = HttpClients.createMinimal();
-		
-		// Timeout - see http://stackoverflow.com/a/29592232
-		this.requestConfig = RequestConfig.custom()
-				.setConnectionRequestTimeout(timeoutInMs)
-				.setConnectTimeout(timeoutInMs)
-				.setSocketTimeout(timeoutInMs)
-				.build();
+		assert parserType != null;
+		assert maxConnections > 0;
 		
-		this.uri = new URIBuilder()
-				.setScheme("http")
-				.setHost(host)
-				.setPort(AMBILIGHT_PORT)
-				.setPath(AMBILIGHT_PATH)
-				.build();
+		this.host = host;
+		this.port = port;
+		this.timeoutMs = timeoutInMs;
+		this.parserType = parserType;
+		this.connections = new ArrayBlockingQueue<AmbilightConnection>(maxConnections);
+		this.tvOffDelayMs = tvOffDelayMs;
+		this.tvOffListeners = new CopyOnWriteArrayList<>();
 	}
 	
 	public void addTVProbablyOffListenr(TVOffListenr listener) {
@@ -62,94 +56,76 @@ public final class AmbilightReader implements AutoCloseable {
 	}
 	
 	public AmbilightData tryReadColors() throws Exception {
+		AmbilightData result = new AmbilightData();
+		if (!this.tryReadColors(result))
+			return null;
+		
+		return result;
+	}
+	public boolean tryReadColors(AmbilightData target) throws Exception {
 		logger.trace("tryReadColors()");
 		
-		HttpGet request = new HttpGet(this.uri);
-		request.setConfig(this.requestConfig);
+		assert target != null;
+		
+		// Parsers and connections keep state while reading, so concurrent requests need one each
+		AmbilightConnection connection = this.connections.poll();
+		if (connection == null) {
+			logger.debug("Creating connection");
+			connection = new AmbilightConnection(this.host, this.port, AMBILIGHT_PATH, this.timeoutMs, this.parserType.create());
+		}
 		
 		logger.trace("Executing HTTP-Request");
-		try (CloseableHttpResponse response = this.httpClient.execute(request)) {
-			logger.trace("Connection created");
-			
-			String responseJSON = EntityUtils.toString(response.getEntity());
-			logger.trace("Response read");
-			
-			JSONObject json = new JSONObject(responseJSON);
-			logger.trace("JSON parsed");
-			JSONObject layer1 = json.getJSONObject("layer1");
-			logger.trace("layer1 parsed");
-			
-			AmbilightData result = parseData(layer1);
+		try {
+			connection.read(target);
 			logger.trace("AmbilightData read");
 			
-			firstFailedRequest = null;
-			return result;
+			this.requestSucceeded();
+			return true;
 		} catch (Exception e) {	
 			logger.trace("Exception during webrequest", e);
 			
+			connection.close();
+			this.requestFailed();
+			return false;
+		} finally {
+			if (this.closed || !this.connections.offer(connection))
+				connection.close();
+		}
+	}
+	
+	private synchronized void requestSucceeded() {
+		this.firstFailedRequest = null;
+		this.tvOffNotified = false;
+	}
+	private void requestFailed() {
+		synchronized (this) {
 			long currentMillis = System.currentTimeMillis();
 			if (firstFailedRequest == null) {
 				logger.trace("First failed request");
 				
-				firstFailedRequest = currentMillis;				
-			} else {
-				logger.trace("Not first failed request");
-				
-				if (currentMillis - firstFailedRequest.longValue() >= this.tvOffDelayMs) {
-					logger.debug("Delay exceeded - sending notification");
-					
-					for (TVOffListenr listener : this.tvOffListeners)
-						listener.tvProbablyOff();
-				} 
+				firstFailedRequest = currentMillis;
+				return;
 			}
 			
-			return null;
-		}
-	}
-
-	public void close() throws Exception {
-		logger.trace("close()");
-		
-		this.httpClient.close();
-	}	
-
-	private AmbilightData parseData(JSONObject data) {
-		assert data != null;
-		
-		Color[] left = parsePosition(data.getJSONObject("left"));
-		Color[] top = parsePosition(data.getJSONObject("top"));
-		Color[] right = parsePosition(data.getJSONObject("right"));
-		Color[] bottom = parsePosition(data.getJSONObject("bottom"));
-		
-		return new AmbilightData(left, top, right, bottom);
-	}
-	
-	private Color[] parsePosition(JSONObject position) {
-		assert position != null;
-		
-		String[] names = JSONObject.getNames(position);
-		if (names == null)
-			return new Color[0];
-		
-		Color[] result = new Color[names.length];
-		for (int i = 0; i < result.length; i++) {
-			assert position.has(String.valueOf(i));
+			logger.trace("Not first failed request");
+			if (this.tvOffNotified || currentMillis - firstFailedRequest.longValue() < this.tvOffDelayMs)
+				return;
 			
-			JSONObject colorJSON = position.getJSONObject(String.valueOf(i));
-			result[i] = parseColor(colorJSON);
+			// Concurrent requests fail together - notify only once per series of failures
+			this.tvOffNotified = true;
 		}
 		
-		return result;
+		logger.debug("Delay exceeded - sending notification");
+		for (TVOffListenr listener : this.tvOffListeners)
+			listener.tvProbablyOff();
 	}
 
-	private Color parseColor(JSONObject colorJSON) {
-		assert colorJSON != null;
-		assert colorJSON.has("r") && colorJSON.has("g") && colorJSON.has("b");
-		
-		byte r = (byte) colorJSON.getInt("r");
-		byte g = (byte) colorJSON.getInt("g");
-		byte b = (byte) colorJSON.getInt("b");
+	public void close() throws Exception {
+		logger.trace("close()");
 		
-		return new Color(r, g, b);
+		this.closed = true;
+		AmbilightConnection connection;
+		while ((connection = this.connections.poll()) != null)
+			connection.close();
 	}
 }
@@ -0,0 +1,340 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.philips.lighting.hue.sdk.utilities.PHUtilities;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Answers the part of the Hue REST API used by ambihue like a bridge with simulated lights.
+// Commands beyond the rate limits of a real bridge (10 light and 1 group command per second)
+// are rejected with an internal error. Colors received are matched against the palette of the
+// TV simulator to measure the time from the TV showing a color until the light is set to it.
+public final class BridgeSimulator implements AutoCloseable {
+	static Logger logger = LogManager.getLogger();
+
+	public final static String MODEL_NUMBER = "LCT001";
+	private final static double LIGHT_COMMANDS_PER_SECOND = 10;
+	private final static double GROUP_COMMANDS_PER_SECOND = 1;
+
+	// Token bucket allowing bursts of one second worth of commands
+	private static class RateLimit {
+		private final double perSecond;
+		private double tokens;
+		private long last;
+
+		private RateLimit(double perSecond) {
+			this.perSecond = perSecond;
+			this.tokens = perSecond;
+			this.last = System.nanoTime();
+		}
+
+		private boolean tryAcquire() {
+			long now = System.nanoTime();
+			this.tokens = Math.min(this.perSecond, this.tokens + (now - this.last) / 1e9 * this.perSecond);
+			this.last = now;
+			if (this.tokens < 1)
+				return false;
+
+			this.tokens--;
+			return true;
+		}
+	}
+
+	private final HttpServer server;
+	private final String username;
+	private final TVSimulator tv;
+	private final float[][] palette;
+
+	// Guarded by this
+	private final JSONObject lights;
+	private final JSONObject groups;
+	private final Map<String, Integer> shownColors;
+	private final RateLimit lightLimit;
+	private final RateLimit groupLimit;
+	private int nextGroup;
+	private long commands;
+	private long rejected;
+	private LatencyHistogram latencies;
+
+	public BridgeSimulator(int port, String username, int lightCount, TVSimulator tv) throws IOException {
+		logger.trace("BridgeSimulator()");
+
+		assert tv != null;
+
+		this.username = username;
+		this.tv = tv;
+		this.palette = new float[TVSimulator.PALETTE.length][];
+		for (int i = 0; i < this.palette.length; i++) {
+			int[] color = TVSimulator.PALETTE[i];
+			this.palette[i] = PHUtilities.calculateXYFromRGB(color[0], color[1], color[2], MODEL_NUMBER);
+		}
+
+		this.lights = new JSONObject();
+		for (int i = 1; i <= lightCount; i++)
+			this.lights.put(String.valueOf(i), this.createLight(i));
+		this.groups = new JSONObject();
+		this.shownColors = new HashMap<String, Integer>();
+		this.lightLimit = new RateLimit(LIGHT_COMMANDS_PER_SECOND);
+		this.groupLimit = new RateLimit(GROUP_COMMANDS_PER_SECOND);
+		this.nextGroup = 1;
+		this.latencies = new LatencyHistogram();
+
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.server.createContext("/api", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				BridgeSimulator.this.serve(exchange);
+			}
+		});
+		this.server.setExecutor(Executors.newCachedThreadPool());
+		this.server.start();
+
+		logger.info("Bridge simulator listening on port " + this.getPort());
+	}
+
+	public int getPort() {
+		return this.server.getAddress().getPort();
+	}
+	public static String getLightName(int light) {
+		return "Simulated light " + light;
+	}
+
+	public synchronized long getCommands() {
+		return this.commands;
+	}
+	public synchronized long getRejected() {
+		return this.rejected;
+	}
+	// Time from the TV showing a color until a light was set to it
+	public synchronized LatencyHistogram.Snapshot takeLatencies() {
+		return this.latencies.takeSnapshot();
+	}
+	public synchronized void resetStatistics() {
+		this.commands = 0;
+		this.rejected = 0;
+		this.latencies = new LatencyHistogram();
+		this.shownColors.clear();
+	}
+
+	@Override
+	public void close() {
+		logger.trace("close()");
+
+		this.server.stop(0);
+	}
+
+	private JSONObject createLight(int light) {
+		JSONObject state = new JSONObject()
+				.put("on", true)
+				.put("bri", 254)
+				.put("hue", 0)
+				.put("sat", 0)
+				.put("xy", new JSONArray().put(0.3227).put(0.329))
+				.put("ct", 153)
+				.put("alert", "none")
+				.put("effect", "none")
+				.put("colormode", "xy")
+				.put("reachable", true);
+
+		return new JSONObject()
+				.put("state", state)
+				.put("type", "Extended color light")
+				.put("name", getLightName(light))
+				.put("modelid", MODEL_NUMBER)
+				.put("manufacturername", "Philips")
+				.put("uniqueid", String.format("00:17:88:01:00:00:00:%02x-0b", light))
+				.put("swversion", "5.105.0.21169");
+	}
+
+	private JSONObject createConfig() {
+		JSONObject whitelist = new JSONObject()
+				.put(this.username, new JSONObject().put("name", "ambihue#simulator"));
+
+		return new JSONObject()
+				.put("name", "Simulated bridge")
+				.put("ipaddress", "127.0.0.1")
+				.put("mac", "00:17:88:00:00:00")
+				.put("bridgeid", "001788FFFE000000")
+				.put("modelid", "BSB002")
+				.put("swversion", "01036659")
+				.put("apiversion", "1.16.0")
+				.put("linkbutton", false)
+				.put("portalservicesenabled", false)
+				.put("whitelist", whitelist);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		Object response;
+		try {
+			String[] path = exchange.getRequestURI().getPath().replaceAll("^/api/?|/$", "").split("/");
+			JSONObject body = null;
+			try (InputStream input = exchange.getRequestBody()) {
+				if (exchange.getRequestMethod().equals("PUT") || exchange.getRequestMethod().equals("POST"))
+					body = new JSONObject(new JSONTokener(input));
+			}
+
+			synchronized (this) {
+				response = this.handle(exchange.getRequestMethod(), path, body);
+			}
+		} catch (Exception e) {
+			logger.debug("Simulated bridge request failed", e);
+			response = error(2, exchange.getRequestURI().getPath(), "body contains invalid json");
+		}
+
+		byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(bytes);
+		}
+	}
+
+	private Object handle(String method, String[] path, JSONObject body) {
+		if (path.length == 1 && path[0].equals("config"))
+			return this.createConfig();
+		if (!path[0].equals(this.username))
+			return error(1, "/", "unauthorized user");
+
+		String resource = path.length > 1 ? path[1] : null;
+		String id = path.length > 2 ? path[2] : null;
+		String address = "/" + (resource != null ? resource : "") + (id != null ? "/" + id : "");
+
+		if (method.equals("GET")) {
+			if (resource == null) {
+				return new JSONObject()
+						.put("lights", this.lights)
+						.put("groups", this.groups)
+						.put("config", this.createConfig())
+						.put("schedules", new JSONObject())
+						.put("scenes", new JSONObject())
+						.put("sensors", new JSONObject())
+						.put("rules", new JSONObject());
+			}
+			if (resource.equals("config"))
+				return this.createConfig();
+
+			JSONObject resources = resource.equals("lights") ? this.lights : resource.equals("groups") ? this.groups : null;
+			if (resources == null || (id != null && !resources.has(id)))
+				return error(3, address, "resource, " + address + ", not available");
+			return id != null ? resources.getJSONObject(id) : resources;
+		}
+
+		if (resource == null)
+			return error(4, address, "method, " + method + ", not available for resource, " + address);
+
+		if (resource.equals("lights") && id != null && path.length == 4 && path[3].equals("state") && method.equals("PUT")) {
+			if (!this.lights.has(id))
+				return error(3, address, "resource, " + address + ", not available");
+			if (!this.lightLimit.tryAcquire())
+				return this.reject(address);
+
+			this.setState(id, body);
+			return success(address + "/state", body);
+		}
+
+		if (resource.equals("groups")) {
+			if (id == null && method.equals("POST")) {
+				String created = String.valueOf(this.nextGroup++);
+				this.groups.put(created, new JSONObject()
+						.put("name", body.optString("name"))
+						.put("lights", body.getJSONArray("lights"))
+						.put("type", "LightGroup")
+						.put("action", new JSONObject()));
+				return new JSONArray().put(new JSONObject().put("success", new JSONObject().put("id", created)));
+			}
+			if (id == null || !this.groups.has(id))
+				return error(3, address, "resource, " + address + ", not available");
+
+			JSONObject group = this.groups.getJSONObject(id);
+			if (method.equals("DELETE")) {
+				this.groups.remove(id);
+				return new JSONArray().put(new JSONObject().put("success", "/groups/" + id + " deleted"));
+			}
+			if (method.equals("PUT") && path.length == 4 && path[3].equals("action")) {
+				if (!this.groupLimit.tryAcquire())
+					return this.reject(address);
+
+				JSONArray members = group.getJSONArray("lights");
+				for (int i = 0; i < members.length(); i++)
+					this.setState(members.getString(i), body);
+				return success(address + "/action", body);
+			}
+			if (method.equals("PUT") && path.length == 3) {
+				for (String key : JSONObject.getNames(body))
+					group.put(key, body.get(key));
+				return success(address, body);
+			}
+		}
+
+		return error(4, address, "method, " + method + ", not available for resource, " + address);
+	}
+
+	private void setState(String id, JSONObject body) {
+		this.commands++;
+
+		JSONObject state = this.lights.getJSONObject(id).getJSONObject("state");
+		for (String key : JSONObject.getNames(body))
+			state.put(key, body.get(key));
+
+		if (body.has("xy")) {
+			JSONArray xy = body.getJSONArray("xy");
+			this.colorShown(id, (float) xy.getDouble(0), (float) xy.getDouble(1));
+		}
+	}
+
+	private void colorShown(String id, float x, float y) {
+		int nearest = 0;
+		double nearestDistance = Double.MAX_VALUE;
+		for (int i = 0; i < this.palette.length; i++) {
+			double dx = this.palette[i][0] - x;
+			double dy = this.palette[i][1] - y;
+			double distance = dx * dx + dy * dy;
+			if (distance < nearestDistance) {
+				nearest = i;
+				nearestDistance = distance;
+			}
+		}
+
+		Integer previous = this.shownColors.put(id, nearest);
+		if (previous != null && previous.intValue() == nearest)
+			return;
+
+		long now = System.currentTimeMillis();
+		if (nearest == this.tv.getColorIndex(now))
+			this.latencies.recordNanos(TimeUnit.MILLISECONDS.toNanos(now - this.tv.getColorStart(now)));
+	}
+
+	private JSONArray reject(String address) {
+		this.rejected++;
+		return error(901, address, "Internal error, 503");
+	}
+
+	private static JSONArray success(String address, JSONObject body) {
+		JSONArray result = new JSONArray();
+		for (String key : JSONObject.getNames(body))
+			result.put(new JSONObject().put("success", new JSONObject().put(address + "/" + key, body.get(key))));
+		return result;
+	}
+	private static JSONArray error(int type, String address, String description) {
+		return new JSONArray().put(new JSONObject().put("error", new JSONObject()
+				.put("type", type)
+				.put("address", address)
+				.put("description", description)));
+	}
+}
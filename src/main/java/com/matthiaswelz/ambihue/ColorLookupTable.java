@@ -0,0 +1,154 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.philips.lighting.hue.sdk.utilities.PHUtilities;
+
+// Converts RGB to CIE xy for a light model by interpolation in a table sampled from
+// PHUtilities.calculateXYFromRGB, so matrix math and gamut clamping are only done while the table is built.
+// xy only depends on the ratios of the gamma expanded channels, so every color is scaled until its
+// brightest channel is at full brightness. The table holds one face of the RGB cube per brightest channel,
+// sampled every STEP values of the other two channels. This keeps dark colors and colors with a weak
+// channel - where xy changes fastest - as accurate as bright ones, without calling the SDK per frame.
+// Accuracy: the interpolated xy differs by at most MAX_ERROR (mean below 0.00002) from the SDK result,
+// half the default -colorThreshold, so the error of the table does not defeat the change suppression.
+public final class ColorLookupTable {
+	static Logger logger = LogManager.getLogger();
+
+	// Bound of the distance in CIE xy to the SDK result, checked by ColorLookupTableTest and ColorConversionBenchmark
+	final static float MAX_ERROR = 0.002f;
+
+	private final static int STEP = 3;
+	private final static int POINTS = 255 / STEP + 1;
+	private final static int FACES = 3;
+	// Resolution of the table converting linear values back to channel values
+	private final static int ENCODE_STEPS = 4096;
+
+	// Gamma expanded value of every channel value, as computed by the SDK (sRGB)
+	private final static float[] LINEAR = new float[256];
+	// Channel value of linear values 0 to 1, in grid steps
+	private final static float[] ENCODED = new float[ENCODE_STEPS + 1];
+	static {
+		for (int v = 0; v < 256; v++) {
+			float c = v / 255f;
+			LINEAR[v] = c > 0.04045f ? (float) Math.pow((c + 0.055f) / 1.055f, 2.4f) : c / 12.92f;
+		}
+		for (int i = 0; i <= ENCODE_STEPS; i++) {
+			double linear = (double) i / ENCODE_STEPS;
+			double c = linear > 0.0031308 ? 1.055 * Math.pow(linear, 1 / 2.4) - 0.055 : 12.92 * linear;
+			ENCODED[i] = (float) (c * 255 / STEP);
+		}
+	}
+
+	private final static ConcurrentMap<String, ColorLookupTable> tables = new ConcurrentHashMap<String, ColorLookupTable>();
+
+	// x and y of the color with the brightest channel of the face at 255 and the other two channels
+	// (in RGB order) at u * STEP and v * STEP, at 2 * ((face * POINTS + u) * POINTS + v)
+	private final float[] table;
+	private final float blackX;
+	private final float blackY;
+
+	private ColorLookupTable(String modelNumber) {
+		logger.debug("Building color lookup table for model " + modelNumber);
+
+		this.table = new float[2 * FACES * POINTS * POINTS];
+
+		int i = 0;
+		for (int face = 0; face < FACES; face++) {
+			for (int u = 0; u < POINTS; u++) {
+				for (int v = 0; v < POINTS; v++) {
+					float[] xy;
+					if (face == 0)
+						xy = PHUtilities.calculateXYFromRGB(255, u * STEP, v * STEP, modelNumber);
+					else if (face == 1)
+						xy = PHUtilities.calculateXYFromRGB(u * STEP, 255, v * STEP, modelNumber);
+					else
+						xy = PHUtilities.calculateXYFromRGB(u * STEP, v * STEP, 255, modelNumber);
+					this.table[i++] = xy[0];
+					this.table[i++] = xy[1];
+				}
+			}
+		}
+
+		//Black has no chromaticity, the SDK maps it to a fixed point
+		float[] black = PHUtilities.calculateXYFromRGB(0, 0, 0, modelNumber);
+		this.blackX = black[0];
+		this.blackY = black[1];
+	}
+
+	// Tables are built once per model and shared. Unknown models (null) use the default gamut of the SDK
+	public static ColorLookupTable forModel(String modelNumber) {
+		String key = String.valueOf(modelNumber);
+		ColorLookupTable table = tables.get(key);
+		if (table == null) {
+			table = new ColorLookupTable(modelNumber);
+			ColorLookupTable existing = tables.putIfAbsent(key, table);
+			if (existing != null)
+				table = existing;
+		}
+		return table;
+	}
+
+	// Stores x and y of the color in xy[0] and xy[1]
+	public void calculateXY(int r, int g, int b, float[] xy) {
+		assert xy.length >= 2;
+
+		int face;
+		float max, u, v;
+		if (r >= g && r >= b) {
+			face = 0;
+			max = LINEAR[r];
+			u = LINEAR[g];
+			v = LINEAR[b];
+		} else if (g >= b) {
+			face = 1;
+			max = LINEAR[g];
+			u = LINEAR[r];
+			v = LINEAR[b];
+		} else {
+			face = 2;
+			max = LINEAR[b];
+			u = LINEAR[r];
+			v = LINEAR[g];
+		}
+
+		if (max == 0) {
+			xy[0] = this.blackX;
+			xy[1] = this.blackY;
+			return;
+		}
+
+		// Position of the color scaled to full brightness on the face, in grid steps
+		float scale = ENCODE_STEPS / max;
+		float pu = encode(u * scale);
+		float pv = encode(v * scale);
+		int cu = Math.min((int) pu, POINTS - 2);
+		int cv = Math.min((int) pv, POINTS - 2);
+		float du = pu - cu;
+		float dv = pv - cv;
+
+		// Offsets of the neighbouring grid points along each axis
+		final int uOffset = 2 * POINTS;
+		final int vOffset = 2;
+
+		int i = 2 * ((face * POINTS + cu) * POINTS + cv);
+		for (int c = 0; c < 2; c++, i++) {
+			float c0 = lerp(this.table[i], this.table[i + vOffset], dv);
+			float c1 = lerp(this.table[i + uOffset], this.table[i + uOffset + vOffset], dv);
+			xy[c] = lerp(c0, c1, du);
+		}
+	}
+
+	// Channel value in grid steps of a linear value given in steps of the encoding table
+	private static float encode(float position) {
+		int i = Math.min((int) position, ENCODE_STEPS - 1);
+		return lerp(ENCODED[i], ENCODED[i + 1], position - i);
+	}
+	private static float lerp(float a, float b, float t) {
+		return a + (b - a) * t;
+	}
+}
@@ -0,0 +1,6 @@
+package com.matthiaswelz.ambihue;
+
+// Stage of the frame pipeline, modifies the colors of each frame in place
+public interface FrameFilter {
+	void apply(AmbilightData frame);
+}
@@ -0,0 +1,114 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Processes the frames read from the ambilight before they are sent to the lights. New frames
+// pass through all filters in order. With an output interval, the pipeline additionally fades
+// from the last output to each new frame over the time between the last two frames, so the
+// lights can be updated more often than the ambilight is read.
+// Frames are processed in place, nothing is allocated once the layout of the ambilight is known.
+public final class FramePipeline {
+	static Logger logger = LogManager.getLogger();
+
+	// Longest fade, so frames arriving after a pause are not faded in slowly
+	private final static long MAX_FADE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final List<FrameFilter> filters;
+	private final int outputIntervalMs;
+
+	// Only used by the thread calling process
+	private final AmbilightData from;
+	private final AmbilightData to;
+	private final AmbilightData output;
+	private boolean started;
+	private long lastFrameTime;
+	private long fadeStart;
+	private long fadeDuration;
+	private boolean fading;
+
+	// Frames are only interpolated if outputIntervalMs is > 0
+	public FramePipeline(int outputIntervalMs) {
+		logger.trace("FramePipeline()");
+
+		assert outputIntervalMs >= 0;
+
+		this.filters = new ArrayList<FrameFilter>();
+		this.outputIntervalMs = outputIntervalMs;
+
+		this.from = new AmbilightData();
+		this.to = new AmbilightData();
+		this.output = new AmbilightData();
+	}
+
+	public void addFilter(FrameFilter filter) {
+		logger.debug("Adding filter " + filter.getClass().getSimpleName());
+
+		this.filters.add(filter);
+	}
+
+	public boolean isInterpolating() {
+		return this.outputIntervalMs > 0;
+	}
+	public int getOutputIntervalMs() {
+		return this.outputIntervalMs;
+	}
+
+	// Processes the new frame (or null if there is none) and returns the frame to show at the given time.
+	// Returns null if the output did not change. The returned frame stays valid until the next call.
+	public AmbilightData process(AmbilightData frame, long nanoTime) {
+		if (frame != null) {
+			for (FrameFilter filter : this.filters)
+				filter.apply(frame);
+
+			if (!this.isInterpolating())
+				return frame;
+
+			this.startFade(frame, nanoTime);
+		}
+
+		if (!this.fading)
+			return null;
+
+		return this.interpolate(nanoTime);
+	}
+
+	private void startFade(AmbilightData frame, long nanoTime) {
+		//Fade from the color currently shown, unless the layout changed
+		if (this.started && this.output.hasSameLayout(frame))
+			this.from.copyFrom(this.output);
+		else
+			this.from.copyFrom(frame);
+		this.to.copyFrom(frame);
+
+		this.fadeDuration = this.started ? Math.min(nanoTime - this.lastFrameTime, MAX_FADE_NANOS) : 0;
+		this.fadeStart = nanoTime;
+		this.lastFrameTime = nanoTime;
+		this.started = true;
+		this.fading = true;
+	}
+
+	private AmbilightData interpolate(long nanoTime) {
+		this.output.copyFrom(this.to);
+
+		long elapsed = nanoTime - this.fadeStart;
+		if (elapsed >= this.fadeDuration) {
+			this.fading = false;
+			return this.output;
+		}
+
+		int progress = (int) (elapsed * 256 / this.fadeDuration);
+		byte[] from = this.from.getBuffer();
+		byte[] to = this.to.getBuffer();
+		byte[] output = this.output.getBuffer();
+		for (int i = 0, size = this.output.getSize(); i < size; i++) {
+			int start = from[i] & 0xFF;
+			output[i] = (byte) (start + (((to[i] & 0xFF) - start) * progress >> 8));
+		}
+		return this.output;
+	}
+}
@@ -0,0 +1,239 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+
+// Binary log of ambilight frames. The file starts with MAGIC and the wall clock time (ms) of the
+// recording, followed by one record per frame: the length of the record (int), the time since the
+// previous frame (varint, microseconds), flags, the layout (4 varints, only if changed) and the RGB
+// bytes as differences to the previous frame, encoded as runs of unchanged and changed bytes
+// (2 varints, followed by the changed bytes). A record length of 0 ends the recording.
+public final class FrameRecording {
+	private final static byte[] MAGIC = "AMBIHUE1".getBytes(StandardCharsets.US_ASCII);
+	private final static int LAYOUT_CHANGED = 1;
+	private final static Position[] POSITIONS = Position.values();
+
+	private FrameRecording() {
+	}
+
+	// Appends frames to a memory mapped file. The length of a record is written after its contents,
+	// so a recording cut off by a crash ends with the last complete frame. Thread safe.
+	public static final class Writer implements AutoCloseable {
+		// Size of the mapped regions of the file
+		private final static int REGION_SIZE = 4 << 20;
+
+		private final FileChannel channel;
+		private final AmbilightData previous;
+		private MappedByteBuffer region;
+		private long regionStart;
+		private byte[] record;
+		private long previousTimestamp;
+		private boolean started;
+		private boolean closed;
+		private long frames;
+
+		public Writer(File file) throws IOException {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.previous = new AmbilightData();
+			this.record = new byte[256];
+			this.map(0);
+
+			this.region.put(MAGIC);
+			this.region.putLong(System.currentTimeMillis());
+		}
+
+		public synchronized void write(AmbilightData frame) throws IOException {
+			if (this.closed)
+				return;
+
+			int length = this.encode(frame);
+			if (this.region.remaining() < length + 8)
+				this.map(this.regionStart + this.region.position());
+
+			int position = this.region.position();
+			this.region.position(position + 4);
+			this.region.put(this.record, 0, length);
+			this.region.putInt(position, length);
+			this.frames++;
+		}
+
+		public synchronized long getFrames() {
+			return this.frames;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (this.closed)
+				return;
+
+			this.closed = true;
+			long end = this.regionStart + this.region.position();
+			this.region.force();
+			//Drops the unused rest of the last region. The region itself is unmapped once it is collected
+			this.channel.truncate(end + 4);
+			this.channel.close();
+		}
+
+		private void map(long start) throws IOException {
+			this.regionStart = start;
+			this.region = this.channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+		}
+
+		// Encodes the frame as record into the record buffer, returns the length of the record
+		private int encode(AmbilightData frame) {
+			int size = frame.getSize();
+			// Worst case: alternating runs of single bytes
+			int maximum = 64 + 3 * size;
+			if (this.record.length < maximum)
+				this.record = new byte[maximum];
+
+			long timestamp = frame.getTimestamp();
+			long delta = this.started ? Math.max(timestamp - this.previousTimestamp, 0) : 0;
+			this.previousTimestamp = timestamp;
+			this.started = true;
+
+			int length = putVarint(this.record, 0, delta / 1000);
+
+			boolean layoutChanged = false;
+			for (Position position : POSITIONS)
+				layoutChanged |= frame.getDimension(position) != this.previous.getDimension(position);
+			this.record[length++] = (byte) (layoutChanged ? LAYOUT_CHANGED : 0);
+			if (layoutChanged) {
+				for (Position position : POSITIONS)
+					length = putVarint(this.record, length, frame.getDimension(position));
+				//Differences of a new layout are relative to black
+				this.previous.copyFrom(frame);
+				Arrays.fill(this.previous.getBuffer(), (byte) 0);
+			}
+
+			byte[] current = frame.getBuffer();
+			byte[] previous = this.previous.getBuffer();
+			int i = 0;
+			while (i < size) {
+				int unchanged = i;
+				while (i < size && current[i] == previous[i])
+					i++;
+				int changed = i;
+				while (i < size && current[i] != previous[i])
+					i++;
+
+				length = putVarint(this.record, length, changed - unchanged);
+				length = putVarint(this.record, length, i - changed);
+				for (int j = changed; j < i; j++)
+					this.record[length++] = (byte) (current[j] - previous[j]);
+			}
+
+			System.arraycopy(current, 0, previous, 0, size);
+			return length;
+		}
+
+		private static int putVarint(byte[] target, int offset, long value) {
+			while ((value & ~0x7FL) != 0) {
+				target[offset++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			target[offset++] = (byte) value;
+			return offset;
+		}
+	}
+
+	// Reads the frames of a recording one after another
+	public static final class Reader implements AutoCloseable {
+		private final DataInputStream input;
+		private final long startMillis;
+		private final AmbilightData frame;
+		private byte[] record;
+		private int position;
+		private long timestamp;
+
+		public Reader(File file) throws IOException {
+			this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			this.frame = new AmbilightData();
+			this.record = new byte[256];
+
+			byte[] magic = new byte[MAGIC.length];
+			this.input.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				this.input.close();
+				throw new IOException("Not an ambihue recording: " + file);
+			}
+			this.startMillis = this.input.readLong();
+		}
+
+		// Wall clock time (ms) of the start of the recording
+		public long getStartMillis() {
+			return this.startMillis;
+		}
+
+		// The next frame, with its timestamp relative to the first frame (ns), or null at the end.
+		// The returned frame is reused by the next call
+		public AmbilightData next() throws IOException {
+			int length;
+			try {
+				length = this.input.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			if (length <= 0)
+				return null;
+
+			if (this.record.length < length)
+				this.record = new byte[Math.max(length, 2 * this.record.length)];
+			this.input.readFully(this.record, 0, length);
+			this.position = 0;
+
+			this.timestamp += this.getVarint() * 1000;
+			this.frame.setTimestamp(this.timestamp);
+
+			int flags = this.record[this.position++];
+			if ((flags & LAYOUT_CHANGED) != 0) {
+				int[] dimensions = new int[POSITIONS.length];
+				for (int i = 0; i < dimensions.length; i++)
+					dimensions[i] = (int) this.getVarint();
+				this.frame.resize(dimensions[0], dimensions[1], dimensions[2], dimensions[3]);
+				Arrays.fill(this.frame.getBuffer(), (byte) 0);
+			}
+
+			byte[] buffer = this.frame.getBuffer();
+			int size = this.frame.getSize();
+			int i = 0;
+			while (i < size) {
+				i += (int) this.getVarint();
+				int changed = (int) this.getVarint();
+				if (i + changed > size || this.position + changed > length)
+					throw new IOException("Corrupt ambihue recording");
+				for (int end = i + changed; i < end; i++)
+					buffer[i] += this.record[this.position++];
+			}
+			return this.frame;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.input.close();
+		}
+
+		private long getVarint() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = this.record[this.position++];
+				result |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return result;
+			}
+			throw new IOException("Corrupt ambihue recording");
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Plays a recording in real time, scaled by speed: the frame shown at a given time is the last
+// frame recorded up to that time since the start of the replay. The recording is played in a loop.
+// Frames are read from the file as the replay advances, so recordings of any length can be played.
+public final class FrameReplay implements AutoCloseable {
+	static Logger logger = LogManager.getLogger();
+
+	private final File file;
+	private final double speed;
+
+	// Guarded by this
+	private final AmbilightData current;
+	private FrameRecording.Reader reader;
+	private AmbilightData next;
+	private boolean hasCurrent;
+	private long start;
+	private long loops;
+
+	public FrameReplay(File file, double speed) throws IOException {
+		logger.trace("FrameReplay()");
+
+		assert speed > 0;
+
+		this.file = file;
+		this.speed = speed;
+		this.current = new AmbilightData();
+		this.rewind();
+	}
+
+	// Copies the frame shown at the given time (System.nanoTime()) into target
+	public synchronized void getFrame(long nanoTime, AmbilightData target) throws IOException {
+		if (this.start == 0)
+			this.start = nanoTime;
+
+		long position = (long) ((nanoTime - this.start) * this.speed);
+		while (this.next.getTimestamp() <= position) {
+			this.current.copyFrom(this.next);
+			this.hasCurrent = true;
+			this.next = this.reader.next();
+
+			if (this.next == null) {
+				logger.debug("End of recording - starting over");
+				this.reader.close();
+				this.rewind();
+				this.start = nanoTime;
+				this.loops++;
+				//Not looping again before the first frame of the next loop is due
+				break;
+			}
+		}
+
+		target.copyFrom(this.hasCurrent ? this.current : this.next);
+		target.setTimestamp(nanoTime);
+	}
+
+	public synchronized long getLoops() {
+		return this.loops;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		logger.trace("close()");
+
+		this.reader.close();
+	}
+
+	private void rewind() throws IOException {
+		this.reader = new FrameRecording.Reader(this.file);
+		this.next = this.reader.next();
+		if (this.next == null) {
+			this.reader.close();
+			throw new IOException("No frames recorded in " + this.file);
+		}
+	}
+}
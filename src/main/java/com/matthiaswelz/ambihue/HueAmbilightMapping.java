@@ -1,8 +1,12 @@
 package com.matthiaswelz.ambihue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,8 +17,47 @@ import com.matthiaswelz.ambihue.HueController.LightState;
 public class HueAmbilightMapping {
 	static Logger logger = LogManager.getLogger();
 	
-	static Pattern pattern = Pattern.compile("^(?<lightName>[^:]+):(?<position>[A-Za-z]+)(?<index>[0-9])(:(?<brightness>[0-9]{0,3}))?$");
+	static Pattern pattern = Pattern.compile("^(?<lightName>[^:]+):(?<sources>[^:]+)(:(?<brightness>[0-9]{0,3}))?$");
+	static Pattern sourcePattern = Pattern.compile("^(?<position>[A-Za-z]+)((?<first>[0-9]+)(-(?<last>[0-9]+))?)?(\\*(?<weight>[0-9]*\\.?[0-9]+))?$");
 	
+	private final static Position[] POSITIONS = Position.values();
+	// Sum of the weights of all LEDs of a mapping
+	private final static int TOTAL_WEIGHT = 1 << 16;
+	
+	// LEDs first to last of one side, every LED weighted with weight. A last index of -1 includes the whole side
+	public static class Source {
+		private final Position position;
+		private final int first;
+		private final int last;
+		private final float weight;
+		
+		public Source(Position position, int first, int last, float weight) {
+			assert first >= 0;
+			assert last == -1 || last >= first;
+			assert weight > 0;
+			
+			this.position = position;
+			this.first = first;
+			this.last = last;
+			this.weight = weight;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder result = new StringBuilder(this.position.name());
+			if (this.last != -1) {
+				result.append(this.first);
+				if (this.last != this.first)
+					result.append('-').append(this.last);
+			}
+			if (this.weight != 1)
+				result.append('*').append(this.weight);
+			return result.toString();
+		}
+	}
+	
+	// Syntax: [Light name]:[Source]+[Source]...:[Brightness], where every source is a side (Left),
+	// a single LED (Left2) or a range of LEDs (Left0-3), optionally weighted (Top4*0.5)
 	public static HueAmbilightMapping parse(String mapping) {
 		logger.trace("Matching: " + mapping);
 		
@@ -23,17 +66,42 @@ public class HueAmbilightMapping {
 			logger.trace("No match");
 			return null;
 		}
-
+		
 		logger.trace("Matched");
 		
 		String lightName = matcher.group("lightName");
 		logger.trace("lightName: " + lightName);
 		
-		String position = matcher.group("position");
-		logger.trace("position: " + position);
-		
-		String index = matcher.group("index");
-		logger.trace("index: " + index);
+		List<Source> sources = new ArrayList<Source>();
+		for (String source : matcher.group("sources").split("\\+")) {
+			logger.trace("source: " + source);
+			
+			Matcher sourceMatcher = sourcePattern.matcher(source);
+			if (!sourceMatcher.matches()) {
+				logger.trace("No match for source");
+				return null;
+			}
+			
+			Position position = Position.valueOf(sourceMatcher.group("position"));
+			
+			String first = sourceMatcher.group("first");
+			String last = sourceMatcher.group("last");
+			int firstIndex = first != null ? Integer.parseInt(first) : 0;
+			int lastIndex = last != null ? Integer.parseInt(last) : (first != null ? firstIndex : -1);
+			if (lastIndex != -1 && lastIndex < firstIndex) {
+				logger.trace("Invalid range");
+				return null;
+			}
+			
+			String weight = sourceMatcher.group("weight");
+			float weightValue = weight != null ? Float.parseFloat(weight) : 1;
+			if (weightValue <= 0) {
+				logger.trace("Invalid weight");
+				return null;
+			}
+			
+			sources.add(new Source(position, firstIndex, lastIndex, weightValue));
+		}
 		
 		String brightness = matcher.group("brightness");
 		logger.trace("brightness: " + brightness);
@@ -42,49 +110,119 @@ public class HueAmbilightMapping {
 			logger.trace("Defaulting to brightness: " + brightness);
 		}
 		
-		return new HueAmbilightMapping(lightName, Position.valueOf(position), Integer.parseInt(index), Integer.parseInt(brightness));
+		return new HueAmbilightMapping(lightName, sources, Integer.parseInt(brightness));
 	}
 	
 	private String lightName;
-	private Position position;
-	private int index;
+	private List<Source> sources;
 	private int brightness;
 	private LightState savedState;
 	
+	// LEDs of the sources resolved against the current ambilight layout - only used by the thread calling apply
+	private final int[] layout;
+	private int[] offsets;
+	private int[] weights;
+	private int count;
+	
 	public HueAmbilightMapping(String lightName, Position position, int index, int brightness) {
+		this(lightName, Collections.singletonList(new Source(position, index, index, 1)), brightness);
+	}
+	public HueAmbilightMapping(String lightName, List<Source> sources, int brightness) {
+		assert !sources.isEmpty();
+		
 		this.lightName = lightName;
-		this.position = position;
-		this.index = index;
+		this.sources = new ArrayList<Source>(sources);
 		this.brightness = brightness;
+		
+		this.layout = new int[POSITIONS.length];
+		this.offsets = new int[0];
+		this.weights = new int[0];
 	}
 	
-	protected void prepareLight(HueController hueController) {
+	public String getLightName() {
+		return this.lightName;
+	}
+	
+	// Lights are grouped by their sources. The scope (the name of the ambihue instance, or null)
+	// keeps lights of different TVs sharing a bridge apart
+	protected void prepareLight(HueController hueController, String scope) {
 		assert this.savedState == null;
 		
 		logger.debug("Preparing light " + this.lightName);
 		this.savedState = hueController.saveLightState(this.lightName);
 		hueController.setBrightness(this.lightName, this.brightness);
+		
+		String group = StringUtils.join(this.sources, '+');
+		hueController.joinGroup(this.lightName, scope != null ? scope + "/" + group : group);
 	}
 	protected void unprepareLight(HueController hueController) {
 		assert this.savedState != null;
-
+		
 		logger.debug("Unpreparing light " + this.lightName);
+		//Only queues the restore - the light leaves its group once restored
 		hueController.restoreLightState(this.savedState);
 		this.savedState = null;
 	}
-	protected void apply(HueController hueController, AmbilightData data) {	
-		logger.trace("Applying new color value to " + this.lightName);
+	// Resolves the LEDs ahead of the first frame - only before apply is called by another thread
+	protected void prepareLayout(AmbilightData layout) {
+		if (!layout.hasLayout(this.layout))
+			this.resolve(layout);
+	}
+	protected void apply(LightOutput output, AmbilightData data) {
+		logger.trace("Applying new color value to {}", this.lightName);
+		
+		if (!data.hasLayout(this.layout))
+			this.resolve(data);
+		if (this.count == 0)
+			return;
+		
+		int color = data.averageColor(this.offsets, this.weights, this.count, TOTAL_WEIGHT);
+		output.setColor(lightName, color >>> 16, (color >>> 8) & 0xFF, color & 0xFF);
+	}
+	
+	// Precomputes the buffer offsets and weights of all LEDs, only needed when the layout of the ambilight changes
+	private void resolve(AmbilightData data) {
+		logger.debug("Resolving LEDs of light " + this.lightName);
+		
+		List<Integer> offsets = new ArrayList<Integer>();
+		List<Float> weights = new ArrayList<Float>();
+		float total = 0;
+		for (Source source : this.sources) {
+			int dimension = data.getDimension(source.position);
+			int last = source.last != -1 ? source.last : dimension - 1;
+			if (last >= dimension)
+				logger.warn("Ambilight has only " + dimension + " LEDs at " + source.position + " - ignoring missing LEDs of " + this.lightName);
+			
+			for (int i = source.first; i <= Math.min(last, dimension - 1); i++) {
+				offsets.add(data.getOffset(source.position, i));
+				weights.add(source.weight);
+				total += source.weight;
+			}
+		}
+		
+		this.count = offsets.size();
+		this.offsets = new int[this.count];
+		this.weights = new int[this.count];
+		
+		//Weights are rounded cumulatively, so they add up exactly
+		float sum = 0;
+		int assigned = 0;
+		for (int i = 0; i < this.count; i++) {
+			sum += weights.get(i);
+			int cumulative = i < this.count - 1 ? Math.round(sum / total * TOTAL_WEIGHT) : TOTAL_WEIGHT;
+			this.offsets[i] = offsets.get(i);
+			this.weights[i] = cumulative - assigned;
+			assigned = cumulative;
+		}
 		
-		Color color = data.getColor(this.position, this.index);
-		hueController.setColor(lightName, color);
+		data.copyLayout(this.layout);
 	}
 	
 	@Override
 	public String toString() {
 		return new ToStringBuilder(this)
 				.append("lightName", lightName)
-				.append("position", position)
-				.append("index", index)
+				.append("sources", sources)
 				.append("brightness", brightness)
 				.build();
 	}
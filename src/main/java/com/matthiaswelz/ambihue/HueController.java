@@ -1,7 +1,12 @@
 package com.matthiaswelz.ambihue;
 
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -9,20 +14,29 @@ import org.apache.logging.log4j.Logger;
 import com.philips.lighting.hue.sdk.PHAccessPoint;
 import com.philips.lighting.hue.sdk.PHBridgeSearchManager;
 import com.philips.lighting.hue.sdk.PHHueSDK;
+import com.philips.lighting.hue.sdk.PHMessageType;
 import com.philips.lighting.hue.sdk.PHSDKListener;
-import com.philips.lighting.hue.sdk.utilities.PHUtilities;
+import com.philips.lighting.hue.listener.PHGroupListener;
+import com.philips.lighting.hue.listener.PHLightListener;
 import com.philips.lighting.model.PHBridge;
+import com.philips.lighting.model.PHBridgeResource;
+import com.philips.lighting.model.PHGroup;
+import com.philips.lighting.model.PHHueError;
 import com.philips.lighting.model.PHHueParsingError;
 import com.philips.lighting.model.PHLight;
 import com.philips.lighting.model.PHLightState;
 
-public class HueController implements AutoCloseable {
+public class HueController implements LightOutput, AutoCloseable {
 	static Logger logger = LogManager.getLogger();
 	
 	public interface HueConnectedCallback {
 		void needsPushButton();
 		void hueConnected(String ip, String username);
 	}
+	public interface LightsListener {
+		// The lights of the connected bridge are known, commands are sent from now on
+		void lightsResolved(List<TopologyCache.Light> lights);
+	}
 	public static class LightState {
 		private PHLightState state;
 		private String lightName;
@@ -34,37 +48,205 @@ public class HueController implements AutoCloseable {
 			assert controller.verifyLight(lightName);
 
 			this.lightName = lightName;
-
+		}
+		
+		private void capture(HueController controller) {
 			logger.trace("Saving state of light: " + lightName);
 			PHLight light = controller.findLight(lightName);
-			this.state = new PHLightState(light.getLastKnownLightState());
+			if (light != null)
+				this.state = new PHLightState(light.getLastKnownLightState());
+		}
+	}
+	
+	// Light of the bridge resolved by name, valid until the light cache of the bridge is updated
+	private static class LightHandle {
+		private final PHLight light;
+		private final ColorLookupTable colors;
+		
+		private LightHandle(PHLight light) {
+			this.light = light;
+			this.colors = ColorLookupTable.forModel(light.getModelNumber());
+		}
+	}
+	
+	private static class LightChannel {
+		private final String lightName;
+		private LightGroup group;
+		
+		private boolean sent;
+		private float sentX;
+		private float sentY;
+		private long sentTime;
+		
+		private boolean pending;
+		private float pendingX;
+		private float pendingY;
+		
+		// Brightness set by ambihue, -1 if not set
+		private int brightness = -1;
+		// Brightness to send once the bridge is connected
+		private boolean brightnessPending;
+		// State to restore, sent before any color update
+		private LightState restore;
+		
+		private LightChannel(String lightName) {
+			this.lightName = lightName;
 		}
+	}
+	
+	// Temporary bridge group for lights which always receive the same color
+	private static class LightGroup {
+		private final String name;
+		private final List<LightChannel> channels;
+		
+		private String identifier;
+		private boolean creating;
 		
-		protected void restore(HueController controller) {
-			logger.trace("restore()");
+		private LightGroup(String name) {
+			this.name = name;
+			this.channels = new ArrayList<LightChannel>();
+		}
+	}
+	private static class GroupListener implements PHGroupListener {
+		@Override
+		public void onSuccess() {
+		}
+		@Override
+		public void onError(int code, String message) {
+			logger.warn("Hue group request failed: " + message);
+		}
+		@Override
+		public void onStateUpdate(Map<String, String> success, List<PHHueError> errors) {
+		}
+		@Override
+		public void onCreated(PHGroup group) {
+		}
+		@Override
+		public void onReceivingGroupDetails(PHGroup group) {
+		}
+		@Override
+		public void onReceivingAllGroups(List<PHBridgeResource> groups) {
+		}
+	}
+	
+	// Records the time until the bridge acknowledges a color command
+	private static class CommandListener extends GroupListener implements PHLightListener {
+		private final long start = System.nanoTime();
+		private boolean acknowledged;
+		
+		private synchronized void acknowledge() {
+			if (this.acknowledged)
+				return;
 			
-			assert controller != null;
-			assert this.state != null;
-
-			logger.trace("Restoring state of light: " + lightName);
-			PHLight light = controller.findLight(lightName);
-			controller.bridge.updateLightState(light, this.state);
-			logger.trace("State restored");
+			this.acknowledged = true;
+			Metrics.record(Metrics.Stage.BridgeCall, this.start);
+		}
+		
+		@Override
+		public void onSuccess() {
+			this.acknowledge();
+		}
+		@Override
+		public void onStateUpdate(Map<String, String> success, List<PHHueError> errors) {
+			this.acknowledge();
+		}
+		@Override
+		public void onError(int code, String message) {
+			logger.debug("Hue color command failed: " + message);
+		}
+		@Override
+		public void onReceivingLightDetails(PHLight light) {
+		}
+		@Override
+		public void onReceivingLights(List<PHBridgeResource> lights) {
+		}
+		@Override
+		public void onSearchComplete() {
 		}
 	}
 	
+	private final static long REPORT_INTERVAL_MS = 30000;
+	private final static String GROUP_PREFIX = "ambihue-";
+	// A color change by this distance (in CIE xy) is prioritized like waiting for one more second
+	private final static double PRIORITY_DISTANCE = 0.01;
+	// The bridge accepts about one group action per second, independent of the commands to single lights
+	private final static long GROUP_COMMAND_INTERVAL_MS = 1000;
+	// Longest time close() spends sending the restores still queued
+	private final static long MAX_CLOSE_RESTORE_MS = 5000;
+	
 	private PHHueSDK hue;
-	private PHBridge bridge;
+	private volatile PHBridge bridge;
 	private HueConnectedCallback callback;
+	// Bridge of this controller - the SDK notifies every controller about all bridges.
+	// Not set while searching for a bridge
+	private String ip;
+	private String username;
+	
+	private final float colorThreshold;
+	private final int maxStalenessMs;
+	private final TickScheduler.Ticker commandTicker;
+	// Rebuilt on demand after being invalidated by a cache update
+	private volatile Map<String, LightHandle> handles;
+	// Several ambihue instances may set colors of the same bridge
+	private final ThreadLocal<float[]> xy = new ThreadLocal<float[]>() {
+		@Override
+		protected float[] initialValue() {
+			return new float[2];
+		}
+	};
+	
+	// Guarded by channels
+	private final Map<String, LightChannel> channels;
+	private final Map<String, LightGroup> groups;
+	private long sentUpdates;
+	private long suppressedUpdates;
+	private long supersededUpdates;
+	private long restoredLights;
+	private long reportStart;
+	private long lastGroupCommand;
+	// The bridge is connected and its lights are known. Until then, lights are resolved from the
+	// topology cache and everything sent to the bridge is queued
+	private boolean connected;
+	// Saved before the bridge was connected, captured once connected
+	private final List<LightState> uncapturedStates;
+	private LightsListener lightsListener;
+	private boolean firstCommandSent;
 	
 	public HueController() throws Exception {
+		this(null, 0, 0, 0, null);
+	}
+	// Color updates are sent by the scheduler, at most commandsPerSecond commands are sent to the bridge.
+	// Color updates closer than colorThreshold (distance in CIE xy) to the color last sent to a light
+	// are suppressed, unless the last update is older than maxStalenessMs.
+	// The device name is reported to the bridge, null looks up the host name, which can stall on DNS
+	public HueController(TickScheduler scheduler, int commandsPerSecond, float colorThreshold, int maxStalenessMs, String deviceName) throws Exception {
 		logger.trace("HueController()");
 		
+		this.colorThreshold = colorThreshold;
+		this.maxStalenessMs = maxStalenessMs;
+		this.channels = new HashMap<String, LightChannel>();
+		this.groups = new HashMap<String, LightGroup>();
+		this.uncapturedStates = new ArrayList<LightState>();
+		
+		if (scheduler != null) {
+			assert commandsPerSecond > 0;
+			
+			long period = Math.max(1000 / commandsPerSecond, 1);
+			this.commandTicker = scheduler.scheduleAtFixedRate("hue-commands", period, period, new Runnable() {
+				@Override
+				public void run() {
+					HueController.this.sendNextCommand();
+				}
+			});
+		} else {
+			this.commandTicker = null;
+		}
+		
 		this.hue = PHHueSDK.getInstance();
 		logger.trace("HUE-SDK instance received");
 		
 		this.hue.setAppName("com.matthiaswelz.ambilighthue");
-		this.hue.setDeviceName(InetAddress.getLocalHost().getHostName());
+		this.hue.setDeviceName(deviceName != null ? deviceName : InetAddress.getLocalHost().getHostName());
 
 		logger.trace("Registering notification manager");
 		this.hue.getNotificationManager().registerSDKListener(new PHSDKListener() {
@@ -86,18 +268,32 @@ public class HueController implements AutoCloseable {
 			
 			@Override
 			public void onConnectionLost(PHAccessPoint arg0) {
+				if (!HueController.this.isOwnAccessPoint(arg0))
+					return;
+				
 				logger.warn("Hue connection lost");
 			}
 			
 			@Override
 			public void onCacheUpdated(List<Integer> arg0, PHBridge arg1) {
 				logger.trace("Hue cache updated");
+				
+				if (arg1 == HueController.this.bridge && arg0.contains(PHMessageType.LIGHTS_CACHE_UPDATED)) {
+					logger.trace("Invalidating light handles");
+					HueController.this.handles = null;
+					HueController.this.synchronizeBridge();
+				}
 			}
 			
 			@Override
 			public void onBridgeConnected(PHBridge bridge, String username) {
 				logger.debug("Hue bridge connected");
 				
+				if (HueController.this.username != null && !HueController.this.username.equals(username)) {
+					logger.trace("Bridge of another controller");
+					return;
+				}
+				
 				assert callback != null;
 				
 				HueController.this.bridge = bridge;
@@ -105,6 +301,7 @@ public class HueController implements AutoCloseable {
 				
 				logger.trace("Enabling heartbeat");
 				hue.enableHeartbeat(bridge, PHHueSDK.HB_INTERVAL);
+				HueController.this.synchronizeBridge();
 	            
 				logger.trace("Raising notification");
 				String ip = bridge.getResourceCache().getBridgeConfiguration().getIpAddress();
@@ -115,6 +312,9 @@ public class HueController implements AutoCloseable {
 			public void onAuthenticationRequired(PHAccessPoint accessPoint) {
 				logger.debug("Hue authentification required");
 				
+				if (!HueController.this.isOwnAccessPoint(accessPoint))
+					return;
+				
 				assert callback != null;
 
 				hue.startPushlinkAuthentication(accessPoint);
@@ -125,6 +325,9 @@ public class HueController implements AutoCloseable {
 			
 			@Override
 			public void onAccessPointsFound(List<PHAccessPoint> arg0) {
+				if (HueController.this.ip != null)
+					return;
+				
 				logger.info("Bridges found: " + arg0.size());
 				
 				PHAccessPoint accessPoint = arg0.get(0);
@@ -152,6 +355,8 @@ public class HueController implements AutoCloseable {
 		
 		assert this.callback == null;
 		this.callback = callback;
+		this.ip = ip;
+		this.username = username;
 		
 		PHAccessPoint accessPoint = new PHAccessPoint();
 	    accessPoint.setIpAddress(ip);
@@ -162,54 +367,211 @@ public class HueController implements AutoCloseable {
 	    logger.trace("Requested to connect");
 	}
 	
+	// Until the bridge is connected, the state is captured once connected, before any command is sent
 	public LightState saveLightState(String lightName) {
 		logger.trace("saveLightState");
 		
 		assert verifyLight(lightName);
 		
-		return new LightState(this, lightName);
+		synchronized (this.channels) {
+			//Not restored yet - the bridge still shows the colors of ambihue, so the saved state is kept
+			LightChannel channel = this.getChannel(lightName);
+			if (channel.restore != null) {
+				logger.debug("Cancelling restore of light " + lightName);
+				LightState lightState = channel.restore;
+				channel.restore = null;
+				return lightState;
+			}
+			
+			LightState lightState = new LightState(this, lightName);
+			if (this.connected)
+				lightState.capture(this);
+			else
+				this.uncapturedStates.add(lightState);
+			return lightState;
+		}
 	}
+	// Queues restoring the state of the light and returns at once. Restores are paced by the command
+	// scheduler like color updates, but sent first. Lights of a group restored to the same state are
+	// restored with a single group command, lights changed by the user in the meantime are skipped.
+	// The light leaves its group once restored.
 	public void restoreLightState(LightState lightState) {
 		logger.trace("restoreLightState");
 		
-		lightState.restore(this);
+		synchronized (this.channels) {
+			//Drops pending color updates, so they cannot overwrite the restored state
+			LightChannel channel = this.getChannel(lightState.lightName);
+			channel.pending = false;
+			channel.sent = false;
+			channel.restore = lightState;
+			
+			//Without a scheduler, restores are sent at once - or once the bridge is connected
+			if (this.commandTicker == null && this.connected)
+				this.sendRestore(channel);
+		}
 	}
 	
-	public void setColor(String lightName, Color color) {
-		logger.trace("setColor for light: " + lightName);
+	// Lights joining the same group always receive the same color. As long as at least two lights
+	// are part of the group, their colors are set with a single group action on the bridge.
+	public void joinGroup(String lightName, String groupName) {
+		logger.trace("joinGroup");
 		
 		assert verifyLight(lightName);
 		
-		PHLight light = this.findLight(lightName);
-		PHLightState state = new PHLightState();
+		synchronized (this.channels) {
+			LightChannel channel = this.getChannel(lightName);
+			
+			//A light taken over again before being restored is still in its group
+			if (channel.group != null) {
+				if (channel.group.name.equals(GROUP_PREFIX + groupName))
+					return;
+				this.leaveGroup(lightName);
+			}
+			
+			LightGroup group = this.groups.get(groupName);
+			if (group == null) {
+				group = new LightGroup(GROUP_PREFIX + groupName);
+				this.groups.put(groupName, group);
+			}
+			
+			group.channels.add(channel);
+			channel.group = group;
+			
+			this.synchronizeGroup(group);
+		}
+	}
+	public void leaveGroup(String lightName) {
+		logger.trace("leaveGroup");
+		
+		synchronized (this.channels) {
+			LightChannel channel = this.getChannel(lightName);
+			LightGroup group = channel.group;
+			if (group == null)
+				return;
+			
+			group.channels.remove(channel);
+			channel.group = null;
+			
+			this.synchronizeGroup(group);
+		}
+	}
+	
+	// Queues the color for the light, replacing any color still pending for it
+	@Override
+	public void setColor(String lightName, int r, int g, int b) {
+		logger.trace("setColor for light: {}", lightName);
+		
+		assert verifyLight(lightName);
+		assert this.commandTicker != null;
+		
+		LightHandle handle = this.getHandle(lightName);
+		if (handle == null)
+			return;
 		
 		logger.trace("Calculating color");
-		float[] xy = PHUtilities.calculateXYFromRGB(color.getR() & 0xFF, color.getG() & 0xFF, color.getB() & 0xFF, light.getModelNumber());
-		state.setX(xy[0], true);
-		state.setY(xy[1], true);
-
-		logger.trace("Updating light to " + xy[0] + " - " +  xy[1]);
-		this.bridge.updateLightState(light, state);
+		long start = System.nanoTime();
+		float[] xy = this.xy.get();
+		handle.colors.calculateXY(r, g, b, xy);
+		Metrics.record(Metrics.Stage.ColorConversion, start);
+		
+		long now = System.currentTimeMillis();
+		synchronized (this.channels) {
+			LightChannel channel = this.getChannel(lightName);
+			
+			//Every update is counted once: as suppressed, or as superseding an update not sent yet
+			if (channel.sent && now - channel.sentTime < this.maxStalenessMs) {
+				float dx = xy[0] - channel.sentX;
+				float dy = xy[1] - channel.sentY;
+				if (dx * dx + dy * dy < this.colorThreshold * this.colorThreshold) {
+					logger.trace("Color change below threshold - suppressing update");
+					channel.pending = false;
+					this.suppressedUpdates++;
+					Metrics.increment(Metrics.Counter.SuppressedUpdates);
+					return;
+				}
+			}
+			
+			if (channel.pending) {
+				this.supersededUpdates++;
+				Metrics.increment(Metrics.Counter.SupersededUpdates);
+			}
+			
+			channel.pendingX = xy[0];
+			channel.pendingY = xy[1];
+			channel.pending = true;
+		}
+	}
+	@Override
+	public void flush() {
+		//Nothing to do - pending colors are sent by the command scheduler
 	}
+	
 	public void setBrightness(String lightName, int brightness) {
 		logger.trace("setBrightness for light: " + lightName);
 		
 		assert verifyLight(lightName);
 		
+		synchronized (this.channels) {
+			LightChannel channel = this.getChannel(lightName);
+			channel.brightness = brightness;
+			channel.brightnessPending = !this.connected;
+			if (channel.brightnessPending)
+				return;
+		}
+		
+		this.sendBrightness(lightName, brightness);
+	}
+	
+	// Resolves all lights of the bridge by name, so later lookups do not need to scan the bridge cache.
+	// Until the bridge is connected, the lights preloaded from the topology cache are used
+	public void resolveLights() {
+		logger.trace("resolveLights");
+		
+		PHBridge bridge = this.bridge;
+		if (bridge == null) {
+			assert this.handles != null;
+			return;
+		}
+		
+		Map<String, LightHandle> handles = new HashMap<String, LightHandle>();
+		for (PHLight light : bridge.getResourceCache().getLights().values())
+			handles.put(light.getName(), new LightHandle(light));
+		
+		logger.debug("Resolved " + handles.size() + " lights");
+		this.handles = handles;
+	}
+	
+	// Resolves the lights from the topology cache, so ambihue can start before the bridge is connected
+	public void preloadLights(List<TopologyCache.Light> lights) {
+		logger.trace("preloadLights");
+		
+		Map<String, LightHandle> handles = new HashMap<String, LightHandle>();
+		for (TopologyCache.Light light : lights)
+			handles.put(light.getName(), new LightHandle(new PHLight(light.getName(), light.getIdentifier(), null, light.getModelNumber())));
+		
+		logger.debug("Preloaded " + handles.size() + " lights");
+		this.handles = handles;
+	}
+	
+	public void setLightsListener(LightsListener lightsListener) {
+		synchronized (this.channels) {
+			this.lightsListener = lightsListener;
+		}
+	}
+	
+	// Null if the light is unknown, or not resolved yet
+	public String getLightIdentifier(String lightName) {
+		assert lightName != null;
+		
 		PHLight light = this.findLight(lightName);
-		PHLightState state = new PHLightState();
-		state.setOn(true);
-		state.setBrightness(brightness, true);
-
-		logger.trace("updating lightstate");
-		this.bridge.updateLightState(light, state);
-		logger.trace("updated lightstate");
+		return light != null ? light.getIdentifier() : null;
 	}
 	
 	public boolean verifyLight(String lightName) {
 		assert lightName != null;
-		assert this.callback != null;
-		assert this.bridge != null;
+		//Lights are known once connecting, or when preloaded from the topology cache
+		assert this.callback != null || this.handles != null;
+		assert this.bridge != null || this.handles != null;
 		
 		PHLight light = this.findLight(lightName);
 		return light != null;
@@ -219,20 +581,352 @@ public class HueController implements AutoCloseable {
 	public void close() throws Exception {
 		logger.info("close()");
 		
+		if (this.commandTicker != null)
+			this.commandTicker.cancel();
+		
 		if (this.bridge != null) {
-			hue.disableAllHeartbeat();
+			//No light is left in the colors of ambihue. The restores still queued are paced like the commands
+			//of the scheduler, so the bridge does not drop them, and sent before disconnecting
+			long periodMs = this.commandTicker != null ? this.commandTicker.getPeriodMs() : 0;
+			long deadline = System.currentTimeMillis() + MAX_CLOSE_RESTORE_MS;
+			while (System.currentTimeMillis() < deadline && this.sendNextRestore())
+				Thread.sleep(periodMs);
+			
+			hue.disableHeartbeat(bridge);
 			hue.disconnect(bridge);
 		}
 	}
 	
+	// Sends the pending color of the light with the highest priority - larger color changes
+	// and lights waiting longer for an update come first
+	private void sendNextCommand() {
+		long now = System.currentTimeMillis();
+		
+		synchronized (this.channels) {
+			this.report(now);
+			
+			//Commands are queued until the bridge is connected
+			if (!this.connected)
+				return;
+			
+			if (this.sendNextRestore())
+				return;
+			
+			LightChannel next = null;
+			double nextPriority = 0;
+			for (LightChannel channel : this.channels.values()) {
+				if (!channel.pending)
+					continue;
+				
+				double priority = this.getPriority(channel, now);
+				if (next == null || priority > nextPriority) {
+					next = channel;
+					nextPriority = priority;
+				}
+			}
+			
+			if (next == null)
+				return;
+			
+			PHLightState state = new PHLightState();
+			state.setX(next.pendingX, true);
+			state.setY(next.pendingY, true);
+			
+			//Beyond the budget for group actions, the lights of a group are updated one by one
+			LightGroup group = next.group;
+			if (group != null && group.identifier != null && this.tryGroupCommand(now)) {
+				//Boxing the coordinates would allocate even with trace disabled
+				if (logger.isTraceEnabled())
+					logger.trace("Updating group {} to {} - {}", group.name, next.pendingX, next.pendingY);
+				this.bridge.setLightStateForGroup(group.identifier, state, new CommandListener());
+				
+				for (LightChannel channel : group.channels)
+					this.markSent(channel, next.pendingX, next.pendingY, now);
+			} else {
+				PHLight light = this.findLight(next.lightName);
+				if (light == null)
+					return;
+				
+				if (logger.isTraceEnabled())
+					logger.trace("Updating light {} to {} - {}", next.lightName, next.pendingX, next.pendingY);
+				this.bridge.updateLightState(light, state, new CommandListener());
+				
+				this.markSent(next, next.pendingX, next.pendingY, now);
+			}
+			this.sentUpdates++;
+			
+			if (!this.firstCommandSent) {
+				this.firstCommandSent = true;
+				logger.info("First color command sent " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after start");
+			}
+		}
+	}
+	
+	// Sends one of the restores still queued, returns false if there is none (or the bridge is not connected)
+	private boolean sendNextRestore() {
+		synchronized (this.channels) {
+			if (!this.connected)
+				return false;
+			
+			for (LightChannel channel : this.channels.values()) {
+				if (channel.restore != null) {
+					this.sendRestore(channel);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	// Restores the saved state of the light, and of all lights of its group if they are restored to the same state
+	private void sendRestore(LightChannel channel) {
+		PHLightState state = channel.restore.state;
+		PHLight light = this.findLight(channel.lightName);
+		if (state == null || light == null || this.isChangedByUser(channel, light)) {
+			//Without a captured state there is nothing to restore - the light was not changed by the user
+			if (state != null)
+				logger.info("Light " + channel.lightName + " changed while running - not restoring it");
+			else
+				logger.debug("No state of light " + channel.lightName + " captured - not restoring it");
+			this.restored(channel);
+			this.leaveGroup(channel.lightName);
+			return;
+		}
+		
+		LightGroup group = channel.group;
+		if (group != null && group.identifier != null && this.canRestoreGroup(group, state) && this.tryGroupCommand(System.currentTimeMillis())) {
+			logger.debug("Restoring lights of group " + group.name);
+			this.bridge.setLightStateForGroup(group.identifier, state, new GroupListener());
+			
+			for (LightChannel member : group.channels) {
+				this.restored(member);
+				member.group = null;
+			}
+			group.channels.clear();
+			this.synchronizeGroup(group);
+		} else {
+			logger.debug("Restoring light " + channel.lightName);
+			this.bridge.updateLightState(light, state, new CommandListener());
+			
+			this.restored(channel);
+			this.leaveGroup(channel.lightName);
+		}
+	}
+	private boolean tryGroupCommand(long now) {
+		if (now - this.lastGroupCommand < GROUP_COMMAND_INTERVAL_MS)
+			return false;
+		
+		this.lastGroupCommand = now;
+		return true;
+	}
+	private boolean canRestoreGroup(LightGroup group, PHLightState state) {
+		for (LightChannel member : group.channels) {
+			if (member.restore == null || !isSameState(member.restore.state, state))
+				return false;
+			
+			PHLight light = this.findLight(member.lightName);
+			if (light == null || this.isChangedByUser(member, light))
+				return false;
+		}
+		return true;
+	}
+	// The cache of the bridge lags behind by up to a heartbeat, so a light only counts as changed
+	// if it shows neither the state set by ambihue nor the saved state
+	private boolean isChangedByUser(LightChannel channel, PHLight light) {
+		PHLightState current = light.getLastKnownLightState();
+		if (current == null)
+			return false;
+		
+		PHLightState saved = channel.restore.state;
+		boolean ambihue = Boolean.TRUE.equals(current.isOn())
+				&& (channel.brightness < 0 || Objects.equals(current.getBrightness(), channel.brightness));
+		boolean original = Objects.equals(current.isOn(), saved.isOn())
+				&& Objects.equals(current.getBrightness(), saved.getBrightness());
+		return !ambihue && !original;
+	}
+	private void restored(LightChannel channel) {
+		channel.restore = null;
+		channel.brightness = -1;
+		this.restoredLights++;
+	}
+	private static boolean isSameState(PHLightState a, PHLightState b) {
+		return Objects.equals(a.isOn(), b.isOn())
+				&& Objects.equals(a.getBrightness(), b.getBrightness())
+				&& Objects.equals(a.getX(), b.getX())
+				&& Objects.equals(a.getY(), b.getY())
+				&& Objects.equals(a.getHue(), b.getHue())
+				&& Objects.equals(a.getSaturation(), b.getSaturation())
+				&& Objects.equals(a.getCt(), b.getCt());
+	}
+	
+	private void sendBrightness(String lightName, int brightness) {
+		PHLight light = this.findLight(lightName);
+		if (light == null)
+			return;
+		
+		PHLightState state = new PHLightState();
+		state.setOn(true);
+		state.setBrightness(brightness, true);
+
+		logger.trace("updating lightstate");
+		this.bridge.updateLightState(light, state);
+		logger.trace("updated lightstate");
+	}
+	
+	// Once the lights of the connected bridge are known, resolves them, captures the saved states
+	// and sends what was queued until then - in this order, so the states are captured unchanged
+	private void synchronizeBridge() {
+		List<TopologyCache.Light> lights;
+		LightsListener lightsListener;
+		synchronized (this.channels) {
+			if (this.connected || this.bridge == null || this.bridge.getResourceCache().getLights().isEmpty())
+				return;
+			
+			logger.debug("Synchronizing with bridge");
+			this.resolveLights();
+			this.connected = true;
+			
+			for (LightState lightState : this.uncapturedStates)
+				lightState.capture(this);
+			this.uncapturedStates.clear();
+			
+			for (LightChannel channel : this.channels.values()) {
+				if (channel.brightnessPending) {
+					channel.brightnessPending = false;
+					if (channel.restore == null)
+						this.sendBrightness(channel.lightName, channel.brightness);
+				}
+			}
+			for (LightGroup group : this.groups.values()) {
+				if (group.identifier == null)
+					this.synchronizeGroup(group);
+			}
+			if (this.commandTicker == null) {
+				while (this.sendNextRestore())
+					continue;
+			}
+			
+			lights = new ArrayList<TopologyCache.Light>();
+			for (PHLight light : this.bridge.getResourceCache().getLights().values())
+				lights.add(new TopologyCache.Light(light.getName(), light.getIdentifier(), light.getModelNumber()));
+			lightsListener = this.lightsListener;
+		}
+		
+		if (lightsListener != null)
+			lightsListener.lightsResolved(lights);
+	}
+	
+	private void markSent(LightChannel channel, float x, float y, long now) {
+		channel.pending = false;
+		channel.sent = true;
+		channel.sentX = x;
+		channel.sentY = y;
+		channel.sentTime = now;
+	}
+	
+	private boolean isOwnAccessPoint(PHAccessPoint accessPoint) {
+		return this.ip == null || this.ip.equals(accessPoint.getIpAddress());
+	}
+	
+	private LightChannel getChannel(String lightName) {
+		LightChannel channel = this.channels.get(lightName);
+		if (channel == null) {
+			channel = new LightChannel(lightName);
+			this.channels.put(lightName, channel);
+		}
+		return channel;
+	}
+	
+	// Brings the group on the bridge in line with its members: groups are only kept
+	// on the bridge as long as they contain at least two lights
+	private void synchronizeGroup(final LightGroup group) {
+		if (group.creating || !this.connected)
+			return;
+		
+		if (group.channels.size() < 2) {
+			if (group.identifier != null) {
+				logger.debug("Deleting group " + group.name);
+				this.bridge.deleteGroup(group.identifier, new GroupListener());
+				group.identifier = null;
+			}
+			return;
+		}
+		
+		List<String> identifiers = new ArrayList<String>();
+		for (LightChannel channel : group.channels)
+			identifiers.add(this.findLight(channel.lightName).getIdentifier());
+		
+		if (group.identifier == null) {
+			logger.debug("Creating group " + group.name + " for lights " + identifiers);
+			group.creating = true;
+			this.bridge.createGroup(group.name, identifiers, new GroupListener() {
+				@Override
+				public void onCreated(PHGroup created) {
+					synchronized (HueController.this.channels) {
+						logger.debug("Group " + group.name + " created");
+						group.identifier = created.getIdentifier();
+						group.creating = false;
+						
+						//Members might have changed in the meantime
+						if (group.channels.size() != created.getLightIdentifiers().size())
+							HueController.this.synchronizeGroup(group);
+					}
+				}
+				@Override
+				public void onError(int code, String message) {
+					super.onError(code, message);
+					synchronized (HueController.this.channels) {
+						group.creating = false;
+					}
+				}
+			});
+		} else {
+			logger.debug("Updating group " + group.name + " to lights " + identifiers);
+			PHGroup update = new PHGroup(group.name, group.identifier);
+			update.setLightIdentifiers(identifiers);
+			this.bridge.updateGroup(update, new GroupListener());
+		}
+	}
+	
+	private double getPriority(LightChannel channel, long now) {
+		if (!channel.sent)
+			return Double.MAX_VALUE;
+		
+		double dx = channel.pendingX - channel.sentX;
+		double dy = channel.pendingY - channel.sentY;
+		double distance = Math.sqrt(dx * dx + dy * dy);
+		
+		return distance / PRIORITY_DISTANCE + (now - channel.sentTime) / 1000.0;
+	}
+	
+	private void report(long now) {
+		if (this.reportStart == 0) {
+			this.reportStart = now;
+			return;
+		}
+		if (now - this.reportStart < REPORT_INTERVAL_MS)
+			return;
+		
+		logger.info("Hue color updates: " + this.sentUpdates + " sent, " + this.suppressedUpdates + " suppressed, " + this.supersededUpdates + " superseded, " + this.restoredLights + " lights restored");
+		this.sentUpdates = 0;
+		this.suppressedUpdates = 0;
+		this.supersededUpdates = 0;
+		this.restoredLights = 0;
+		this.reportStart = now;
+	}
+	
 	private PHLight findLight(String name) {
+		LightHandle handle = this.getHandle(name);
+		return handle != null ? handle.light : null;
+	}
+	private LightHandle getHandle(String name) {
 		assert name != null;
 		
-		for (PHLight light : this.bridge.getResourceCache().getLights().values()) {
-			if (name.equals(light.getName()))
-				return light;
+		Map<String, LightHandle> handles = this.handles;
+		if (handles == null) {
+			this.resolveLights();
+			handles = this.handles;
 		}
 		
-		return null;
+		return handles != null ? handles.get(name) : null;
 	}
 }
@@ -0,0 +1,144 @@
+package com.matthiaswelz.ambihue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Streams the colors of all lights in a single datagram per frame, using the message format
+// of the Hue Entertainment API (HueStream v1, RGB color space).
+// Note: The bridge only accepts the stream over DTLS (PSK) for an active entertainment group.
+// Neither is supported by the Java runtime or the Hue SDK, so the datagrams are sent as plain UDP
+// to the configured endpoint, e.g. a DTLS proxy in front of the bridge.
+public final class HueStreamingOutput implements LightOutput, AutoCloseable {
+	static Logger logger = LogManager.getLogger();
+
+	public final static int DEFAULT_PORT = 2100;
+	// Lights per message - more cannot be streamed
+	public final static int MAX_LIGHTS = 10;
+
+	private final static byte[] PROTOCOL = "HueStream".getBytes(StandardCharsets.US_ASCII);
+	private final static int HEADER_LENGTH = 16;
+	private final static int LIGHT_LENGTH = 9;
+	private final static int SEQUENCE_OFFSET = 11;
+
+	private final HueController hueController;
+	private final DatagramSocket socket;
+	private final DatagramPacket packet;
+	private final byte[] buffer;
+	private final Map<String, Integer> offsets;
+	// Lights reported as unknown, so the warning is not repeated every frame
+	private final Set<String> unknownLights;
+
+	private int lights;
+	private byte sequence;
+	private boolean dirty;
+
+	public HueStreamingOutput(HueController hueController, String host, int port) throws Exception {
+		logger.trace("HueStreamingOutput()");
+
+		assert hueController != null;
+
+		this.hueController = hueController;
+		this.offsets = new HashMap<String, Integer>();
+		this.unknownLights = new HashSet<String>();
+
+		this.buffer = new byte[HEADER_LENGTH + MAX_LIGHTS * LIGHT_LENGTH];
+		System.arraycopy(PROTOCOL, 0, this.buffer, 0, PROTOCOL.length);
+		// Version 1.0
+		this.buffer[9] = 0x01;
+		this.buffer[10] = 0x00;
+		// Bytes 12, 13 (reserved), 14 (color space RGB) and 15 (reserved) are zero
+
+		this.socket = new DatagramSocket();
+		this.packet = new DatagramPacket(this.buffer, HEADER_LENGTH, new InetSocketAddress(host, port));
+	}
+
+	@Override
+	public void setColor(String lightName, int r, int g, int b) {
+		logger.trace("setColor for light: {}", lightName);
+
+		Integer offset = this.offsets.get(lightName);
+		if (offset == null) {
+			offset = this.addLight(lightName);
+			if (offset == null)
+				return;
+		}
+
+		// Colors are sent as 16 bit values
+		int i = offset.intValue() + 3;
+		i = writeShort(this.buffer, i, r * 257);
+		i = writeShort(this.buffer, i, g * 257);
+		writeShort(this.buffer, i, b * 257);
+
+		this.dirty = true;
+	}
+
+	@Override
+	public void flush() {
+		if (!this.dirty)
+			return;
+
+		this.buffer[SEQUENCE_OFFSET] = this.sequence++;
+		try {
+			this.socket.send(this.packet);
+		} catch (Exception e) {
+			logger.debug("Sending stream message failed", e);
+		}
+		this.dirty = false;
+	}
+
+	@Override
+	public void close() {
+		logger.trace("close()");
+
+		this.socket.close();
+	}
+
+	// Returns null if the light is unknown - it is looked up again with its next color, as the lights
+	// of the bridge may not be resolved yet
+	private Integer addLight(String lightName) {
+		if (this.lights >= MAX_LIGHTS)
+			throw new IllegalStateException("Too many lights for streaming: " + lightName);
+
+		String lightIdentifier = this.hueController.getLightIdentifier(lightName);
+		int identifier;
+		try {
+			identifier = lightIdentifier != null ? Integer.parseInt(lightIdentifier) : -1;
+		} catch (NumberFormatException e) {
+			identifier = -1;
+		}
+		if (identifier < 0 || identifier > 0xFFFF) {
+			if (this.unknownLights.add(lightName))
+				logger.warn("Light " + lightName + " not found (identifier " + lightIdentifier + ") - not streaming to it");
+			return null;
+		}
+
+		logger.debug("Streaming to light " + lightName + " (" + identifier + ")");
+
+		int offset = HEADER_LENGTH + this.lights * LIGHT_LENGTH;
+		// Device type light
+		this.buffer[offset] = 0x00;
+		writeShort(this.buffer, offset + 1, identifier);
+
+		this.lights++;
+		this.packet.setLength(HEADER_LENGTH + this.lights * LIGHT_LENGTH);
+
+		Integer result = Integer.valueOf(offset);
+		this.offsets.put(lightName, result);
+		return result;
+	}
+
+	private static int writeShort(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 8);
+		buffer[offset + 1] = (byte) value;
+		return offset + 2;
+	}
+}
@@ -0,0 +1,69 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.InputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+
+public final class JSONAmbilightParser implements AmbilightParser {
+	static Logger logger = LogManager.getLogger();
+
+	@Override
+	public void parse(InputStream input, AmbilightData target) throws Exception {
+		assert input != null;
+		assert target != null;
+
+		JSONObject json = new JSONObject(new JSONTokener(input));
+		logger.trace("JSON parsed");
+		JSONObject layer1 = json.getJSONObject("layer1");
+		logger.trace("layer1 parsed");
+
+		parseData(layer1, target);
+	}
+
+	private void parseData(JSONObject data, AmbilightData target) {
+		assert data != null;
+
+		JSONObject left = data.getJSONObject("left");
+		JSONObject top = data.getJSONObject("top");
+		JSONObject right = data.getJSONObject("right");
+		JSONObject bottom = data.getJSONObject("bottom");
+
+		target.resize(dimension(left), dimension(top), dimension(right), dimension(bottom));
+
+		parsePosition(left, Position.Left, target);
+		parsePosition(top, Position.Top, target);
+		parsePosition(right, Position.Right, target);
+		parsePosition(bottom, Position.Bottom, target);
+	}
+
+	private int dimension(JSONObject position) {
+		assert position != null;
+
+		String[] names = JSONObject.getNames(position);
+		if (names == null)
+			return 0;
+
+		return names.length;
+	}
+
+	private void parsePosition(JSONObject position, Position target, AmbilightData data) {
+		for (int i = 0; i < data.getDimension(target); i++) {
+			assert position.has(String.valueOf(i));
+
+			JSONObject colorJSON = position.getJSONObject(String.valueOf(i));
+			parseColor(colorJSON, target, i, data);
+		}
+	}
+
+	private void parseColor(JSONObject colorJSON, Position position, int index, AmbilightData data) {
+		assert colorJSON != null;
+		assert colorJSON.has("r") && colorJSON.has("g") && colorJSON.has("b");
+
+		data.setColor(position, index, colorJSON.getInt("r"), colorJSON.getInt("g"), colorJSON.getInt("b"));
+	}
+}
@@ -0,0 +1,114 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histogram of durations with logarithmic buckets (like HdrHistogram): values are recorded
+// in microseconds with a relative error below 1/16, up to MAX_MICROS. Recording is lock free
+// and does not allocate.
+public final class LatencyHistogram {
+	private final static int SUB_BITS = 5;
+	private final static int SUB_BUCKETS = 1 << SUB_BITS;
+	private final static int HALF_BUCKETS = SUB_BUCKETS / 2;
+	private final static long MAX_MICROS = TimeUnit.MINUTES.toMicros(1);
+	private final static int BUCKETS = indexOf(MAX_MICROS) + 1;
+
+	// Contents of the histogram at a point in time
+	public final static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long totalMicros;
+		private final long maxMicros;
+
+		private Snapshot(long[] counts, long count, long totalMicros, long maxMicros) {
+			this.counts = counts;
+			this.count = count;
+			this.totalMicros = totalMicros;
+			this.maxMicros = maxMicros;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+		public double getMeanMs() {
+			return this.count > 0 ? this.totalMicros / 1000.0 / this.count : 0;
+		}
+		public double getMaxMs() {
+			return this.maxMicros / 1000.0;
+		}
+		// Upper bound of the bucket containing the given percentile (0 to 100)
+		public double getPercentileMs(double percentile) {
+			long total = 0;
+			for (long count : this.counts)
+				total += count;
+			if (total == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(percentile / 100 * total);
+			long seen = 0;
+			for (int i = 0; i < this.counts.length; i++) {
+				seen += this.counts[i];
+				if (seen >= Math.max(rank, 1))
+					return Math.min(upperBound(i), this.maxMicros) / 1000.0;
+			}
+			return this.getMaxMs();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.1f/%.1f/%.1f ms (%d)", this.getPercentileMs(50), this.getPercentileMs(99), this.getMaxMs(), this.count);
+		}
+	}
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong totalMicros;
+	private final AtomicLong maxMicros;
+
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.count = new AtomicLong();
+		this.totalMicros = new AtomicLong();
+		this.maxMicros = new AtomicLong();
+	}
+
+	public void recordNanos(long nanos) {
+		long micros = Math.min(Math.max(nanos / 1000, 0), MAX_MICROS);
+
+		this.counts.incrementAndGet(indexOf(micros));
+		this.count.incrementAndGet();
+		this.totalMicros.addAndGet(micros);
+
+		long max = this.maxMicros.get();
+		while (micros > max && !this.maxMicros.compareAndSet(max, micros))
+			max = this.maxMicros.get();
+	}
+
+	// Returns the values recorded since the last reset and starts over. Values recorded
+	// concurrently may end up in either interval.
+	public Snapshot takeSnapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = this.counts.getAndSet(i, 0);
+
+		return new Snapshot(counts, this.count.getAndSet(0), this.totalMicros.getAndSet(0), this.maxMicros.getAndSet(0));
+	}
+
+	// Values below SUB_BUCKETS get a bucket each, above that every power of two is split into HALF_BUCKETS buckets
+	private static int indexOf(long micros) {
+		if (micros < SUB_BUCKETS)
+			return (int) micros;
+
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BITS - 1);
+		return SUB_BUCKETS + (shift - 1) * HALF_BUCKETS + (int) (micros >>> shift) - HALF_BUCKETS;
+	}
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+
+		int shift = (index - SUB_BUCKETS) / HALF_BUCKETS + 1;
+		long top = (index - SUB_BUCKETS) % HALF_BUCKETS + HALF_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,13 @@
+package com.matthiaswelz.ambihue;
+
+// Receives the colors of the mapped lights, one frame at a time
+public interface LightOutput {
+	public enum Type {
+		Rest, Streaming
+	}
+
+	void setColor(String lightName, int r, int g, int b);
+
+	// Called after the colors of all lights of a frame have been set
+	void flush();
+}
@@ -0,0 +1,58 @@
+package com.matthiaswelz.ambihue;
+
+// Replaces every color channel by its median over the last frames, which removes single
+// frame flicker without blurring lasting changes
+public final class MedianFilter implements FrameFilter {
+	private final int frames;
+	private final int[] values;
+	private final int[] layout;
+
+	private byte[][] history;
+	private int next;
+	private int count;
+
+	public MedianFilter(int frames) {
+		assert frames > 0;
+
+		this.frames = frames;
+		this.values = new int[frames];
+		this.history = new byte[frames][0];
+		this.layout = new int[AmbilightData.Position.values().length];
+	}
+
+	@Override
+	public void apply(AmbilightData frame) {
+		byte[] buffer = frame.getBuffer();
+		int size = frame.getSize();
+
+		if (!frame.hasLayout(this.layout)) {
+			//Layout changed - drop the history, the median only covers frames from now on
+			if (this.history[0].length < size) {
+				for (int i = 0; i < this.frames; i++)
+					this.history[i] = new byte[size];
+			}
+			frame.copyLayout(this.layout);
+			this.next = 0;
+			this.count = 0;
+		}
+
+		System.arraycopy(buffer, 0, this.history[this.next], 0, size);
+		this.next = (this.next + 1) % this.frames;
+		if (this.count < this.frames)
+			this.count++;
+
+		int count = this.count;
+		int[] values = this.values;
+		for (int i = 0; i < size; i++) {
+			//Insertion sort - the history holds only a few frames
+			for (int j = 0; j < count; j++) {
+				int value = this.history[j][i] & 0xFF;
+				int k = j;
+				for (; k > 0 && values[k - 1] > value; k--)
+					values[k] = values[k - 1];
+				values[k] = value;
+			}
+			buffer[i] = (byte) values[count / 2];
+		}
+	}
+}
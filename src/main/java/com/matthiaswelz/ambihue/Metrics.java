@@ -0,0 +1,194 @@
+package com.matthiaswelz.ambihue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Latencies of the stages between reading the TV and the bridge acknowledging a color, plus
+// counters for frames and updates that never made it to a light. Recording is cheap and can be
+// done from any thread. Once started, the latencies of each report interval are logged and
+// exposed via JMX (domain com.matthiaswelz.ambihue), together with the counters since start.
+public final class Metrics {
+	static Logger logger = LogManager.getLogger();
+
+	public enum Stage {
+		// Establishing a TCP connection to the TV
+		Connect,
+		// Sending the request until the response headers arrive
+		Response,
+		// Reading and parsing the response body
+		Parse,
+		// Frame waiting between the reader and the hue thread
+		QueueWait,
+		// Converting RGB to the color space of a light
+		ColorConversion,
+		// Sending a command until the bridge acknowledges it
+		BridgeCall
+	}
+	public enum Counter {
+		// Frames overwritten in the frame buffer before the hue thread took them
+		DroppedFrames,
+		// Responses overtaken by a newer response
+		DiscardedResponses,
+		// Reads not started because all requests were in flight
+		SkippedReads,
+		// Ticks of the scheduler coalesced after an overrun
+		CoalescedTicks,
+		// Light colors replaced before they were sent
+		SupersededUpdates,
+		// Light colors not sent because they hardly changed
+		SuppressedUpdates
+	}
+
+	public interface StageMXBean {
+		long getCount();
+		double getMeanMs();
+		double getMedianMs();
+		double getPercentile99Ms();
+		double getMaxMs();
+	}
+	public interface CountersMXBean {
+		long getDroppedFrames();
+		long getDiscardedResponses();
+		long getSkippedReads();
+		long getCoalescedTicks();
+		long getSupersededUpdates();
+		long getSuppressedUpdates();
+	}
+
+	private final static Stage[] STAGES = Stage.values();
+	private final static String DOMAIN = "com.matthiaswelz.ambihue";
+
+	private final static LatencyHistogram[] histograms;
+	private final static LatencyHistogram.Snapshot[] snapshots;
+	private final static AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+	private static TickScheduler.Ticker reportTicker;
+
+	static {
+		histograms = new LatencyHistogram[STAGES.length];
+		snapshots = new LatencyHistogram.Snapshot[STAGES.length];
+		for (int i = 0; i < STAGES.length; i++) {
+			histograms[i] = new LatencyHistogram();
+			snapshots[i] = histograms[i].takeSnapshot();
+		}
+	}
+
+	private Metrics() {
+	}
+
+	// Records the time elapsed since startNanos (from System.nanoTime())
+	public static void record(Stage stage, long startNanos) {
+		histograms[stage.ordinal()].recordNanos(System.nanoTime() - startNanos);
+	}
+	public static void increment(Counter counter) {
+		counters.incrementAndGet(counter.ordinal());
+	}
+	public static void add(Counter counter, long value) {
+		counters.addAndGet(counter.ordinal(), value);
+	}
+	public static long get(Counter counter) {
+		return counters.get(counter.ordinal());
+	}
+
+	public static synchronized void start(TickScheduler scheduler, long reportIntervalMs) {
+		logger.trace("Starting metrics");
+
+		if (reportTicker != null)
+			return;
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (final Stage stage : STAGES) {
+				server.registerMBean(new StageMXBean() {
+					@Override
+					public long getCount() {
+						return getSnapshot(stage).getCount();
+					}
+					@Override
+					public double getMeanMs() {
+						return getSnapshot(stage).getMeanMs();
+					}
+					@Override
+					public double getMedianMs() {
+						return getSnapshot(stage).getPercentileMs(50);
+					}
+					@Override
+					public double getPercentile99Ms() {
+						return getSnapshot(stage).getPercentileMs(99);
+					}
+					@Override
+					public double getMaxMs() {
+						return getSnapshot(stage).getMaxMs();
+					}
+				}, new ObjectName(DOMAIN + ":type=Latency,name=" + stage.name()));
+			}
+			server.registerMBean(new CountersMXBean() {
+				@Override
+				public long getDroppedFrames() {
+					return get(Counter.DroppedFrames);
+				}
+				@Override
+				public long getDiscardedResponses() {
+					return get(Counter.DiscardedResponses);
+				}
+				@Override
+				public long getSkippedReads() {
+					return get(Counter.SkippedReads);
+				}
+				@Override
+				public long getCoalescedTicks() {
+					return get(Counter.CoalescedTicks);
+				}
+				@Override
+				public long getSupersededUpdates() {
+					return get(Counter.SupersededUpdates);
+				}
+				@Override
+				public long getSuppressedUpdates() {
+					return get(Counter.SuppressedUpdates);
+				}
+			}, new ObjectName(DOMAIN + ":type=Counters"));
+		} catch (Exception e) {
+			logger.warn("Registering metrics via JMX failed", e);
+		}
+
+		reportTicker = scheduler.scheduleAtFixedRate("metrics-report", reportIntervalMs, reportIntervalMs, new Runnable() {
+			@Override
+			public void run() {
+				Metrics.report();
+			}
+		});
+	}
+
+	private static synchronized LatencyHistogram.Snapshot getSnapshot(Stage stage) {
+		return snapshots[stage.ordinal()];
+	}
+
+	private static void report() {
+		StringBuilder latencies = new StringBuilder("Latencies (median/99%/max): ");
+		for (Stage stage : STAGES) {
+			LatencyHistogram.Snapshot snapshot = histograms[stage.ordinal()].takeSnapshot();
+			synchronized (Metrics.class) {
+				snapshots[stage.ordinal()] = snapshot;
+			}
+
+			if (stage.ordinal() > 0)
+				latencies.append(", ");
+			latencies.append(stage.name()).append(' ').append(snapshot);
+		}
+		logger.info(latencies);
+
+		StringBuilder totals = new StringBuilder("Counters since start: ");
+		for (Counter counter : Counter.values()) {
+			if (counter.ordinal() > 0)
+				totals.append(", ");
+			totals.append(counter.name()).append(' ').append(get(counter));
+		}
+		logger.info(totals);
+	}
+}
@@ -1,15 +1,19 @@
 package com.matthiaswelz.ambihue;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-public class Parameters {
+public class Parameters implements Cloneable {
 	@Option(name="-tvIP",usage="Sets the IP address of the TV")
 	public String tvIP;
+	@Option(name="-tvPort",usage="Sets the port of the JSON API of the TV")
+	public int tvPort = AmbilightReader.DEFAULT_PORT;
 	@Option(name="-hueIP",usage="Sets the IP address of the Hue bridge")
 	public String hueIP;
 	@Option(name="-hueUser",usage="Sets the username for the hue bridge")
@@ -19,12 +23,50 @@ public class Parameters {
 	public int ambilightTimeoutMS = 100;
 	@Option(name="-tvOffDelay", depends={"-start"},usage="Sets the time (in ms) after which the system should assume that the TV has been turned off")
 	public int tvOffDelay = 3000;
-	@Option(name = "-map", depends={"-start"}, handler=StringArrayOptionHandler.class, usage="Mappings between ambilight positions and light names. Syntax: [Light name]:[Ambilight Position][Ambilight Index]:[Brightness]")
+	@Option(name = "-map", depends={"-start"}, handler=StringArrayOptionHandler.class, usage="Mappings between ambilight positions and light names. Syntax: [Light name]:[Ambilight Source]+[Ambilight Source]...:[Brightness], where a source is a position (Left), a single LED (Left2) or a range of LEDs (Left0-3), optionally weighted (Top4*0.5)")
 	public List<String> mappings = new ArrayList<String>();
-	@Option(name="-tvCheckInterval", depends={"-start"},usage="Sets the interval (in ms) to check the TV after it has been turned off")
-	public int tvCheckIntervalMs = 5000;
+	@Option(name="-tvCheckInterval", depends={"-start"},usage="Sets the longest interval (in ms) to check the TV after it has been turned off or does not answer. Checks start at -tvCheckMinInterval and back off exponentially")
+	public int tvCheckIntervalMs = 1000;
+	@Option(name="-tvCheckMinInterval", depends={"-start"},usage="Sets the interval (in ms) of the first checks after the TV has been turned off or changed its state")
+	public int tvCheckMinIntervalMs = 100;
 	@Option(name="-interval", depends={"-start"}, usage="Sets the interval (in ms) to read from the Ambilight")
 	public int interval = 250;
+	@Option(name="-adaptiveInterval", depends={"-start"}, usage="Adapts the interval for reading from the Ambilight to the motion of the scene, between -minInterval and -maxInterval")
+	public boolean adaptiveInterval;
+	@Option(name="-minInterval", depends={"-adaptiveInterval"}, usage="Sets the shortest interval (in ms) to read from the Ambilight, used in fast scenes")
+	public int minIntervalMs = 50;
+	@Option(name="-maxInterval", depends={"-adaptiveInterval"}, usage="Sets the longest interval (in ms) to read from the Ambilight, used in static scenes")
+	public int maxIntervalMs = 1000;
+	@Option(name="-ambilightRequests", depends={"-start"}, usage="Sets the number of concurrent requests to the Ambilight, so a slow TV does not reduce the frame rate")
+	public int ambilightRequests = 2;
+	@Option(name="-bridgeCommandRate", depends={"-start"}, usage="Sets the maximum number of color commands per second sent to the Hue bridge")
+	public int bridgeCommandRate = 10;
+	@Option(name="-colorThreshold", depends={"-start"}, usage="Sets the minimum color change (distance in CIE xy) for sending an update to a light")
+	public float colorThreshold = 0.004f;
+	@Option(name="-maxStaleness", depends={"-start"}, usage="Sets the time (in ms) after which a light is updated even if its color did not change")
+	public int maxStalenessMs = 2000;
+	@Option(name="-output", depends={"-start"}, usage="Sets how colors are sent to the lights: Rest (Hue API calls) or Streaming (Hue Entertainment messages via UDP, at most 10 lights)")
+	public LightOutput.Type output = LightOutput.Type.Rest;
+	@Option(name="-streamingHost", depends={"-start"}, usage="Sets the host receiving the stream messages (defaults to the IP of the Hue bridge)")
+	public String streamingHost;
+	@Option(name="-streamingPort", depends={"-start"}, usage="Sets the UDP port receiving the stream messages")
+	public int streamingPort = HueStreamingOutput.DEFAULT_PORT;
+	@Option(name="-smoothing", depends={"-start"}, usage="Sets the factor (0 to 1) by which each frame moves the colors towards the new values, 0 disables smoothing")
+	public float smoothing = 0;
+	@Option(name="-medianFrames", depends={"-start"}, usage="Sets the number of frames of which the median color is shown to suppress flicker, 0 disables the filter")
+	public int medianFrames = 0;
+	@Option(name="-outputInterval", depends={"-start"}, usage="Sets the interval (in ms) for updating the lights with colors interpolated between frames, 0 updates the lights once per frame")
+	public int outputIntervalMs = 0;
+	@Option(name="-name", depends={"-start"}, usage="Sets the name of the ambihue instance, which tells instances sharing a bridge apart")
+	public String name;
+	@Option(name="-record", depends={"-start"}, usage="Records every frame read from the Ambilight to the file, for playing it with -replay. With -config, give it on the lines of the TVs to record")
+	public File record;
+	@Option(name="-topologyCache", usage="Sets the file caching the lights of the bridges and the LED layouts of the TVs, so ambihue starts before the bridge is connected. Give an empty path to disable the cache")
+	public File topologyCache = new File(System.getProperty("user.home"), ".ambihue-topology.json");
+	@Option(name="-ambilightParser", usage="Sets the parser for the ambilight response (Streaming or JSON)")
+	public AmbilightParser.Type ambilightParser = AmbilightParser.Type.Streaming;
+	@Option(name="-platformThreads", usage="Uses platform threads for reading from the TV, even if the Java runtime supports virtual threads")
+	public boolean platformThreads;
 	
 	@Option(name = "-connect", forbids = {"-tvIP", "-hueIP", "-hueUser", "-ambilightTimeout", "-tvOffDelay", "-map", "-start", "tvCheckInterval", "-interval"}, usage="Searches for a bridge")
 	public boolean connect;
@@ -32,25 +74,91 @@ public class Parameters {
 	public boolean start;
 	@Option(name = "-ambilightInfo", forbids = {"-connect", "-hueIP", "-hueUser", "-map", "start", "tvCheckInterval", "-interval"}, depends={"-tvIP"}, usage="Displays information about the installed Ambilight")
 	public boolean ambilightInfo;
+	@Option(name = "-config", forbids = {"-connect", "-start", "-ambilightInfo", "-simulate"}, usage="Runs one ambihue instance per line of the file, every line holds the options of -start for one TV. -tvIP, -hueIP and -hueUser given on the command line apply to all lines")
+	public File config;
+	
+	@Option(name = "-simulate", forbids = {"-connect", "-start", "-ambilightInfo"}, usage="Runs ambihue against a simulated TV and bridge and reports the achieved performance")
+	public boolean simulate;
+	@Option(name = "-simulationIntervals", depends={"-simulate"}, handler=StringArrayOptionHandler.class, usage="Sets the read intervals (in ms) to simulate")
+	public List<String> simulationIntervals = new ArrayList<String>(Arrays.asList("250", "100", "50", "25"));
+	@Option(name = "-simulationDuration", depends={"-simulate"}, usage="Sets the duration (in s) of the simulation of each interval")
+	public int simulationDurationS = 30;
+	@Option(name = "-simulatedLights", depends={"-simulate"}, usage="Sets the number of lights of the simulated bridge")
+	public int simulatedLights = 3;
+	@Option(name = "-simulatedLeds", depends={"-simulate"}, usage="Sets the number of LEDs at the left and right of the simulated TV (top and bottom have twice as many)")
+	public int simulatedLeds = 8;
+	@Option(name = "-simulatedLatency", depends={"-simulate"}, usage="Sets the minimum response time (in ms) of the simulated TV")
+	public int simulatedLatencyMs = 20;
+	@Option(name = "-simulatedJitter", depends={"-simulate"}, usage="Sets the maximum additional random response time (in ms) of the simulated TV")
+	public int simulatedJitterMs = 10;
+	@Option(name = "-simulatedFailureRate", depends={"-simulate"}, usage="Sets the fraction (0 to 1) of requests failing at the simulated TV")
+	public double simulatedFailureRate = 0;
+	
+	@Option(name = "-replay", forbids = {"-connect", "-start", "-ambilightInfo", "-simulate", "-config"}, usage="Plays a recording made with -record: as a TV on -tvPort, or with -replaySpeed 0 as fast as possible through the frame processing, reporting its throughput")
+	public File replay;
+	@Option(name = "-replaySpeed", depends={"-replay"}, usage="Sets the speed of the replay (1 is real time), 0 processes the frames offline as fast as possible")
+	public double replaySpeed = 1;
 	
 	@Option(name = "-logLevel", usage = "Log Level")
 	public String logLevel = "INFO";
 	
 	
+	// Copy for parsing the options of a single ambihue instance, see -config
+	public Parameters copy() {
+		try {
+			Parameters result = (Parameters) this.clone();
+			result.mappings = new ArrayList<String>(this.mappings);
+			result.simulationIntervals = new ArrayList<String>(this.simulationIntervals);
+			return result;
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
 	@Override
 	public String toString() {
 		return new ToStringBuilder(this)
+				.append("name", name)
 				.append("tvIP", tvIP)
+				.append("tvPort", tvPort)
 				.append("hueIP", hueIP)
 				.append("hueUser", hueUser)
 				.append("ambilightTimeout", ambilightTimeoutMS)
 				.append("tvOffDelay", tvOffDelay)
 				.append("tvCheckInterval", tvCheckIntervalMs)
+				.append("tvCheckMinInterval", tvCheckMinIntervalMs)
 				.append("interval", interval)
+				.append("adaptiveInterval", adaptiveInterval)
+				.append("minInterval", minIntervalMs)
+				.append("maxInterval", maxIntervalMs)
+				.append("ambilightRequests", ambilightRequests)
+				.append("bridgeCommandRate", bridgeCommandRate)
+				.append("colorThreshold", colorThreshold)
+				.append("maxStaleness", maxStalenessMs)
+				.append("output", output)
+				.append("streamingHost", streamingHost)
+				.append("streamingPort", streamingPort)
+				.append("smoothing", smoothing)
+				.append("medianFrames", medianFrames)
+				.append("outputInterval", outputIntervalMs)
+				.append("record", record)
+				.append("topologyCache", topologyCache)
+				.append("ambilightParser", ambilightParser)
 				.append("map", mappings)
 				.append("connect", connect)
 				.append("start", start)
 				.append("ambilightInfo", ambilightInfo)
+				.append("config", config)
+				.append("simulate", simulate)
+				.append("simulationIntervals", simulationIntervals)
+				.append("simulationDuration", simulationDurationS)
+				.append("simulatedLights", simulatedLights)
+				.append("simulatedLeds", simulatedLeds)
+				.append("simulatedLatency", simulatedLatencyMs)
+				.append("simulatedJitter", simulatedJitterMs)
+				.append("simulatedFailureRate", simulatedFailureRate)
+				.append("replay", replay)
+				.append("replaySpeed", replaySpeed)
 				.append("logLevel", logLevel)
 				.build();
 	}
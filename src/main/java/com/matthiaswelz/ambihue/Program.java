@@ -25,11 +25,14 @@ public class Program {
 		
 		logger.debug("Parameters: " + parameters);
 		
+		Threads.setVirtualThreadsEnabled(!parameters.platformThreads);
+		logger.debug("Using virtual threads: " + Threads.isUsingVirtualThreads());
+		
 		if (parameters.connect) {
 			logger.debug("Running SearchBridgeProgram");
 			
 			new SearchBridgeProgram(parameters).run();
-		} else if (parameters.start) {
+		} else if (parameters.start || parameters.config != null) {
 			logger.debug("Running StartProgram");
 			
 			new StartProgram(parameters).run();
@@ -37,6 +40,14 @@ public class Program {
 			logger.debug("Running InfoProgram");
 			
 			new AmbilightInfoProgram(parameters).run();
+		} else if (parameters.simulate) {
+			logger.debug("Running SimulationProgram");
+			
+			new SimulationProgram(parameters).run();
+		} else if (parameters.replay != null) {
+			logger.debug("Running ReplayProgram");
+			
+			new ReplayProgram(parameters).run();
 		} else {
 			parser.printUsage(System.out);
 		}
@@ -0,0 +1,155 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+
+// Plays a recording made with -record. In real time (or scaled by -replaySpeed), a simulated TV
+// on -tvPort shows the recorded frames, so ambihue can be run against real scenes without a TV.
+// With -replaySpeed 0, the frames are processed offline as fast as possible by several frame
+// pipelines (one light per side of the TV), reporting the throughput and processing times.
+public class ReplayProgram {
+	static Logger logger = LogManager.getLogger();
+
+	// Every benchmark runs twice, the first run warms up the JIT
+	private final static int RUNS = 2;
+	private final static int INTERPOLATION_INTERVAL_MS = 20;
+
+	// Counts the colors set instead of sending them
+	private static class CountingOutput implements LightOutput {
+		private long colors;
+
+		@Override
+		public void setColor(String lightName, int r, int g, int b) {
+			this.colors++;
+		}
+		@Override
+		public void flush() {
+		}
+	}
+
+	private final Parameters parameters;
+
+	public ReplayProgram(Parameters parameters) {
+		this.parameters = parameters;
+	}
+
+	public void run() throws Exception {
+		if (parameters.replaySpeed > 0)
+			this.replay();
+		else
+			this.benchmark();
+	}
+
+	private void replay() throws Exception {
+		try (FrameReplay replay = new FrameReplay(parameters.replay, parameters.replaySpeed);
+				TVSimulator tv = new TVSimulator(parameters.tvPort, replay)) {
+			logger.info("Replaying " + parameters.replay + " at speed " + parameters.replaySpeed + " as TV on port " + tv.getPort());
+
+			logger.debug("Entering infinite wait loop");
+			Object obj = new Object();
+			synchronized (obj) {
+				obj.wait();
+			}
+		}
+	}
+
+	private void benchmark() throws Exception {
+		List<String> results = new ArrayList<String>();
+		for (int run = 1; run <= RUNS; run++) {
+			results.clear();
+			results.add(this.benchmarkDecoding());
+			results.add(this.benchmark("no filters", new FramePipeline(0)));
+
+			FramePipeline median = new FramePipeline(0);
+			median.addFilter(new MedianFilter(5));
+			results.add(this.benchmark("median of 5 frames", median));
+
+			FramePipeline smoothing = new FramePipeline(0);
+			smoothing.addFilter(new SmoothingFilter(0.5f));
+			results.add(this.benchmark("smoothing 0.5", smoothing));
+
+			results.add(this.benchmark("interpolation every " + INTERPOLATION_INTERVAL_MS + " ms", new FramePipeline(INTERPOLATION_INTERVAL_MS)));
+
+			for (String result : results)
+				logger.debug("Run " + run + ": " + result);
+		}
+
+		System.out.println("Replay of " + parameters.replay + ":");
+		for (String result : results)
+			System.out.println("  " + result);
+	}
+
+	private String benchmarkDecoding() throws IOException {
+		long frames = 0;
+		long duration = 0;
+		long start = System.nanoTime();
+		try (FrameRecording.Reader reader = new FrameRecording.Reader(parameters.replay)) {
+			AmbilightData frame;
+			while ((frame = reader.next()) != null) {
+				frames++;
+				duration = frame.getTimestamp();
+			}
+
+			long elapsed = System.nanoTime() - start;
+			return String.format("decoding: %d frames recorded %s over %.1f s, %.0f frames/s",
+					frames, new Date(reader.getStartMillis()), duration / 1e9, frames * 1e9 / elapsed);
+		}
+	}
+
+	// Feeds the recorded frames to the pipeline at their recorded times, and interpolated
+	// frames at the output interval in between, as the refresh thread of ambihue would
+	private String benchmark(String name, FramePipeline pipeline) throws IOException {
+		List<HueAmbilightMapping> mappings = new ArrayList<HueAmbilightMapping>();
+		for (Position position : Position.values())
+			mappings.add(HueAmbilightMapping.parse(position + ":" + position));
+
+		CountingOutput output = new CountingOutput();
+		LatencyHistogram latencies = new LatencyHistogram();
+		AmbilightData frame = new AmbilightData();
+		long outputIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pipeline.getOutputIntervalMs());
+		long nextOutput = 0;
+		long frames = 0;
+
+		long start = System.nanoTime();
+		try (FrameRecording.Reader reader = new FrameRecording.Reader(parameters.replay)) {
+			AmbilightData recorded;
+			while ((recorded = reader.next()) != null) {
+				long time = recorded.getTimestamp();
+				if (pipeline.isInterpolating()) {
+					for (; nextOutput < time; nextOutput += outputIntervalNanos)
+						this.process(pipeline, null, nextOutput, mappings, output, latencies);
+				}
+
+				//Filters work in place, but the reader needs its frame for decoding the next one
+				frame.copyFrom(recorded);
+				this.process(pipeline, frame, time, mappings, output, latencies);
+				frames++;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		//Most calls take less than the resolution of the histogram, so the mean is taken from the total time
+		LatencyHistogram.Snapshot snapshot = latencies.takeSnapshot();
+		return String.format("%s: %.0f frames/s, %.2f us per call (max %.1f ms, %d calls), %d colors set",
+				name, frames * 1e9 / elapsed, elapsed / 1e3 / snapshot.getCount(), snapshot.getMaxMs(), snapshot.getCount(), output.colors);
+	}
+
+	private void process(FramePipeline pipeline, AmbilightData frame, long time, List<HueAmbilightMapping> mappings, LightOutput output, LatencyHistogram latencies) {
+		long start = System.nanoTime();
+		AmbilightData data = pipeline.process(frame, time);
+		if (data != null) {
+			for (HueAmbilightMapping mapping : mappings)
+				mapping.apply(output, data);
+			output.flush();
+		}
+		latencies.recordNanos(System.nanoTime() - start);
+	}
+}
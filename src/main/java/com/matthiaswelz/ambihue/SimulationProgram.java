@@ -0,0 +1,148 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Runs ambihue end to end against the TV and bridge simulators, once for every read interval.
+// Each run starts a separate JVM with "-start", so runs do not influence each other, and
+// reports the achieved frame and command rates, the time from the TV showing a color until
+// the bridge receives it, and the heap used by ambihue (read via JMX).
+public class SimulationProgram {
+	static Logger logger = LogManager.getLogger();
+
+	private final static String USERNAME = "ambihue-simulator";
+	private final static long WARMUP_MS = 5000;
+	private final static long COLOR_SWITCH_MS = 2000;
+
+	private final Parameters parameters;
+
+	public SimulationProgram(Parameters parameters) {
+		this.parameters = parameters;
+	}
+
+	public void run() throws Exception {
+		List<String> results = new ArrayList<String>();
+
+		try (TVSimulator tv = new TVSimulator(0, parameters.simulatedLeds, parameters.simulatedLatencyMs, parameters.simulatedJitterMs, parameters.simulatedFailureRate, COLOR_SWITCH_MS);
+				BridgeSimulator bridge = new BridgeSimulator(0, USERNAME, parameters.simulatedLights, tv)) {
+			for (String interval : parameters.simulationIntervals) {
+				String result = this.simulate(tv, bridge, Integer.parseInt(interval));
+				logger.info(result);
+				results.add(result);
+			}
+		}
+
+		System.out.println("Simulation results (" + parameters.simulationDurationS + " s per interval):");
+		for (String result : results)
+			System.out.println("  " + result);
+	}
+
+	private String simulate(TVSimulator tv, BridgeSimulator bridge, int intervalMs) throws Exception {
+		logger.info("Simulating read interval of " + intervalMs + " ms");
+
+		int jmxPort;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			jmxPort = socket.getLocalPort();
+		}
+
+		File log = File.createTempFile("ambihue-simulation-" + intervalMs + "ms-", ".log");
+		Process process = new ProcessBuilder(this.createCommand(tv, bridge, intervalMs, jmxPort))
+				.redirectErrorStream(true)
+				.redirectOutput(log)
+				.start();
+		logger.debug("Output of ambihue is written to " + log);
+
+		try {
+			Thread.sleep(WARMUP_MS);
+			tv.resetStatistics();
+			bridge.resetStatistics();
+
+			long maxHeap = 0;
+			long collections = 0;
+			JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://127.0.0.1:" + jmxPort + "/jmxrmi");
+			try (JMXConnector connector = JMXConnectorFactory.connect(url)) {
+				MBeanServerConnection connection = connector.getMBeanServerConnection();
+				long startCollections = this.getCollections(connection);
+
+				long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(parameters.simulationDurationS);
+				while (System.currentTimeMillis() < end) {
+					Thread.sleep(1000);
+
+					CompositeData heap = (CompositeData) connection.getAttribute(new ObjectName(ManagementFactory.MEMORY_MXBEAN_NAME), "HeapMemoryUsage");
+					maxHeap = Math.max(maxHeap, (Long) heap.get("used"));
+				}
+				collections = this.getCollections(connection) - startCollections;
+			}
+
+			double seconds = parameters.simulationDurationS;
+			LatencyHistogram.Snapshot latencies = bridge.takeLatencies();
+			return String.format("%d ms: %.1f frames/s read (%d failed), %.1f commands/s (%d rejected), color to light %.0f/%.0f/%.0f ms (median/99%%/max), heap %.1f MB, %d collections",
+					intervalMs, tv.getServed() / seconds, tv.getFailed(), bridge.getCommands() / seconds, bridge.getRejected(),
+					latencies.getPercentileMs(50), latencies.getPercentileMs(99), latencies.getMaxMs(),
+					maxHeap / 1024.0 / 1024.0, collections);
+		} finally {
+			process.destroy();
+			process.waitFor();
+		}
+	}
+
+	private List<String> createCommand(TVSimulator tv, BridgeSimulator bridge, int intervalMs, int jmxPort) {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-Dcom.sun.management.jmxremote.port=" + jmxPort);
+		command.add("-Dcom.sun.management.jmxremote.authenticate=false");
+		command.add("-Dcom.sun.management.jmxremote.ssl=false");
+		command.add(Program.class.getName());
+		command.add("-start");
+		command.add("-tvIP");
+		command.add("127.0.0.1");
+		command.add("-tvPort");
+		command.add(String.valueOf(tv.getPort()));
+		command.add("-hueIP");
+		command.add("127.0.0.1:" + bridge.getPort());
+		command.add("-hueUser");
+		command.add(USERNAME);
+		command.add("-interval");
+		command.add(String.valueOf(intervalMs));
+		command.add("-tvCheckInterval");
+		command.add("1000");
+		command.add("-ambilightRequests");
+		command.add(String.valueOf(parameters.ambilightRequests));
+		command.add("-bridgeCommandRate");
+		command.add(String.valueOf(parameters.bridgeCommandRate));
+		command.add("-logLevel");
+		command.add(parameters.logLevel);
+		if (parameters.platformThreads)
+			command.add("-platformThreads");
+		//The simulated bridge and TV must not end up in the topology cache of the user
+		command.add("-topologyCache");
+		command.add("");
+		command.add("-map");
+		for (int light = 1; light <= parameters.simulatedLights; light++)
+			command.add(BridgeSimulator.getLightName(light) + ":Left" + (light - 1) % parameters.simulatedLeds);
+		return command;
+	}
+
+	private long getCollections(MBeanServerConnection connection) throws Exception {
+		long result = 0;
+		for (ObjectName name : connection.queryNames(new ObjectName(ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*"), null))
+			result += (Long) connection.getAttribute(name, "CollectionCount");
+		return result;
+	}
+}
@@ -0,0 +1,45 @@
+package com.matthiaswelz.ambihue;
+
+// Exponential moving average of every LED: each frame moves the colors by the given factor
+// towards the new values. Small factors give slow, smooth transitions.
+public final class SmoothingFilter implements FrameFilter {
+	private final float factor;
+
+	private final int[] layout;
+
+	private float[] state;
+	private boolean started;
+
+	public SmoothingFilter(float factor) {
+		assert factor > 0 && factor <= 1;
+
+		this.factor = factor;
+		this.layout = new int[AmbilightData.Position.values().length];
+		this.state = new float[0];
+	}
+
+	@Override
+	public void apply(AmbilightData frame) {
+		byte[] buffer = frame.getBuffer();
+		int size = frame.getSize();
+
+		if (!this.started || !frame.hasLayout(this.layout)) {
+			//Layout changed - start over with the current frame
+			if (this.state.length < size)
+				this.state = new float[size];
+			for (int i = 0; i < size; i++)
+				this.state[i] = buffer[i] & 0xFF;
+			frame.copyLayout(this.layout);
+			this.started = true;
+			return;
+		}
+
+		float[] state = this.state;
+		float factor = this.factor;
+		for (int i = 0; i < size; i++) {
+			float value = state[i] + ((buffer[i] & 0xFF) - state[i]) * factor;
+			state[i] = value;
+			buffer[i] = (byte) Math.round(value);
+		}
+	}
+}
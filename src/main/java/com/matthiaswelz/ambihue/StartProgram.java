@@ -1,117 +1,269 @@
 package com.matthiaswelz.ambihue;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.commons.lang3.text.StrTokenizer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.CmdLineParser;
 
-import com.matthiaswelz.ambihue.AmbilightReader.TVOffListenr;
 import com.matthiaswelz.ambihue.HueController.HueConnectedCallback;
+import com.matthiaswelz.ambihue.HueController.LightsListener;
 
+// Runs one ambihue instance per TV. With -config, several TVs are served by a single process,
+// instances using the same bridge share a single connection to it. Instances of bridges found in
+// the topology cache start at once, the others once their bridge is connected
 public class StartProgram {
 	static Logger logger = LogManager.getLogger();
 
-	private Timer tvPollTimer;
-	private AmbilightReader reader;
-	private HueController hueController;
-	private Ambihue ambihue;
+	// A bridge and the instances setting the colors of its lights
+	private static class Bridge {
+		private final String ip;
+		private final String username;
+		private final HueController hueController;
+		private final List<AmbihueInstance> instances;
+		private final Set<String> lightNames;
+		// Guarded by this
+		private boolean started;
+
+		private Bridge(String ip, String username, HueController hueController) {
+			this.ip = ip;
+			this.username = username;
+			this.hueController = hueController;
+			this.instances = new ArrayList<AmbihueInstance>();
+			this.lightNames = new HashSet<String>();
+		}
+	}
+
+	private TickScheduler scheduler;
+	private TopologyCache topologyCache;
+	private String deviceName;
+	private final Map<String, Bridge> bridges;
 
 	private Parameters parameters;
-	
+
 	public StartProgram(Parameters parameters) {
 		this.parameters = parameters;
+		this.bridges = new LinkedHashMap<String, Bridge>();
 	}
 
-	private void scheduleTVCheck() {
-		logger.trace("Scheduling TV check");
-		
-		this.tvPollTimer.schedule(new TimerTask() {	
+	public void run() throws Exception {
+		List<Parameters> instances = this.readInstances();
+		if (instances.isEmpty()) {
+			logger.error("No ambihue instance configured");
+			return;
+		}
+
+		if (!this.parameters.topologyCache.getPath().isEmpty()) {
+			this.topologyCache = TopologyCache.load(this.parameters.topologyCache);
+			this.deviceName = this.getDeviceName();
+		}
+
+		logger.debug("Creating scheduler");
+		int threads = Math.max(2, Math.min(instances.size() + 1, Runtime.getRuntime().availableProcessors()));
+		this.scheduler = new TickScheduler("ambihue-scheduler", threads);
+		Metrics.start(this.scheduler, 30000);
+
+		//A failing instance must not keep the others from running
+		for (Parameters instance : instances) {
+			try {
+				this.addInstance(instance);
+			} catch (Exception e) {
+				logger.error("Skipping ambihue instance for TV " + instance.tvIP, e);
+			}
+		}
+
+		//Stopping the process (Ctrl+C, SIGTERM) restores the lights before the bridges are disconnected
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 			@Override
 			public void run() {
+				StartProgram.this.close();
+			}
+		}, "ambihue-shutdown"));
+
+		for (final Bridge bridge : this.bridges.values()) {
+			List<TopologyCache.Light> lights = this.topologyCache != null ? this.topologyCache.getLights(bridge.ip) : null;
+			if (lights != null)
+				bridge.hueController.preloadLights(lights);
+			if (this.topologyCache != null) {
+				bridge.hueController.setLightsListener(new LightsListener() {
+					@Override
+					public void lightsResolved(List<TopologyCache.Light> lights) {
+						StartProgram.this.topologyCache.setLights(bridge.ip, lights);
+						StartProgram.this.topologyCache.save();
+					}
+				});
+			}
+
+			logger.debug("Connecting to hue " + bridge.ip);
+			bridge.hueController.connect(bridge.ip, bridge.username, new HueConnectedCallback() {
+				@Override
+				public void needsPushButton() {
+					logger.error("Bridge " + bridge.ip + " needs PushButton - please reconnect!");
+				}
+				@Override
+				public void hueConnected(String ip, String username) {
+					logger.info("Connected to Bridge " + ip);
+
+					StartProgram.this.startInstances(bridge);
+				}
+			});
+
+			//Commands to the bridge are queued until it is connected, the streaming output and reading the TV start at once
+			if (lights != null) {
+				logger.info("Starting with " + lights.size() + " cached lights of bridge " + bridge.ip);
+				this.startInstances(bridge);
+			}
+		}
+
+		logger.debug("Entering infinite wait loop");
+		Object obj = new Object();
+		synchronized (obj) {
+			obj.wait();
+		}
+	}
+
+	private void addInstance(Parameters instance) throws Exception {
+		String key = instance.hueIP + "/" + instance.hueUser;
+		Bridge bridge = this.bridges.get(key);
+		if (bridge == null) {
+			logger.debug("Creating hueController for bridge " + instance.hueIP);
+			HueController hueController = new HueController(this.scheduler, instance.bridgeCommandRate, instance.colorThreshold, instance.maxStalenessMs, this.deviceName);
+			bridge = new Bridge(instance.hueIP, instance.hueUser, hueController);
+			this.bridges.put(key, bridge);
+		}
+
+		logger.debug("Creating ambihue instance for TV " + instance.tvIP);
+		AmbihueInstance ambihue = new AmbihueInstance(instance, this.scheduler, bridge.hueController, this.topologyCache);
+
+		//Instances setting the same light would fight over its color
+		List<String> lightNames = new ArrayList<String>();
+		for (HueAmbilightMapping association : ambihue.getAssociations()) {
+			String lightName = association.getLightName();
+			if (bridge.lightNames.contains(lightName) || lightNames.contains(lightName)) {
+				ambihue.close();
+				throw new IllegalArgumentException("Light " + lightName + " is mapped more than once");
+			}
+			lightNames.add(lightName);
+		}
+
+		bridge.lightNames.addAll(lightNames);
+		bridge.instances.add(ambihue);
+	}
+
+	// Stops all instances, which queues restoring their lights, then closes the bridges, which send the restores
+	private void close() {
+		logger.info("Shutting down");
+
+		for (Bridge bridge : this.bridges.values()) {
+			for (AmbihueInstance instance : bridge.instances) {
 				try {
-					StartProgram.this.checkTV();
+					instance.close();
 				} catch (Exception e) {
-					System.err.println(e);
+					logger.error("Closing ambihue instance failed", e);
 				}
 			}
-		}, this.parameters.tvCheckIntervalMs);
-	}
-	
-	private void checkTV() throws Exception {
-		logger.trace("Checking TV");
-		
-		if (this.reader.tryReadColors() == null) {
-			logger.trace("TV still off");
-			
-			this.scheduleTVCheck();
-			return;
+			try {
+				bridge.hueController.close();
+			} catch (Exception e) {
+				logger.error("Closing bridge " + bridge.ip + " failed", e);
+			}
 		}
-		
-		logger.info("TV on - starting Ambihue");
-		this.ambihue.start();
+
+		this.scheduler.close();
 	}
 
-	public void run() throws Exception {		
-		logger.debug("Creating tvPollTimer");
-		this.tvPollTimer = new Timer(true);
+	private void startInstances(Bridge bridge) {
+		synchronized (bridge) {
+			if (bridge.started)
+				return;
+			bridge.started = true;
+		}
+
+		for (AmbihueInstance instance : bridge.instances)
+			instance.start();
+	}
 
-		logger.debug("Creating hueController");
-		this.hueController = new HueController();
+	// Looking up the host name can stall on DNS for seconds, so the name found by an earlier run
+	// (or given by the environment) is used, while the lookup runs in the background for the next run
+	private String getDeviceName() {
+		String deviceName = this.topologyCache.getDeviceName();
+		if (deviceName == null)
+			deviceName = System.getenv("HOSTNAME");
+		if (deviceName == null)
+			deviceName = System.getenv("COMPUTERNAME");
+		if (deviceName == null)
+			deviceName = "ambihue";
 
-		logger.debug("Creating ambilightReader");
-		this.reader = new AmbilightReader(parameters.tvIP, parameters.ambilightTimeoutMS, parameters.tvOffDelay);
-		reader.addTVProbablyOffListenr(new TVOffListenr() {
+		Threads.start("hostname-lookup", new Runnable() {
 			@Override
-			public void tvProbablyOff() {
-				logger.debug("Received tvProbablyOff notification");
-				if (!ambihue.isRunning())
-					return;
-				
-				logger.info("TV off - stopping Ambihue");
+			public void run() {
 				try {
-					ambihue.stop();
-				} catch (Exception e) {
-					logger.catching(e);
+					StartProgram.this.topologyCache.setDeviceName(InetAddress.getLocalHost().getHostName());
+					StartProgram.this.topologyCache.save();
+				} catch (UnknownHostException e) {
+					logger.debug("Looking up host name failed: " + e.getMessage());
 				}
-
-				logger.info("Waiting for TV to be turned on again");
-				scheduleTVCheck();
 			}
 		});
+		return deviceName;
+	}
 
-		logger.debug("Creating Ambihue");
-		this.ambihue = new Ambihue(reader, hueController, this.parameters.interval);
-
-		logger.debug("Parsing mappings");
-		for (String mapping : parameters.mappings) {
-			logger.debug("Parsing mapping " + mapping);
-			
-			HueAmbilightMapping association = HueAmbilightMapping.parse(mapping);
-			this.ambihue.addAssociation(association);
-			
-			logger.debug("Mapping added: " + association);
-		}
+	// The parameters of every instance - a single one without -config
+	private List<Parameters> readInstances() throws Exception {
+		if (this.parameters.config == null)
+			return Collections.singletonList(this.parameters);
 
-		logger.debug("Connecting to hue");
-		hueController.connect(parameters.hueIP, parameters.hueUser, new HueConnectedCallback() {
-			@Override
-			public void needsPushButton() {
-				logger.error("Needs PushButton - please reconnect!");
-			}			
-			@Override
-			public void hueConnected(String ip, String username) {
-				logger.info("Connected to Bridge " + ip);
+		logger.info("Reading instances from " + this.parameters.config);
+		List<Parameters> result = new ArrayList<Parameters>();
+		List<String> lines = Files.readAllLines(this.parameters.config.toPath(), StandardCharsets.UTF_8);
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
 
-				logger.info("Waiting for TV to be turned on");
-				scheduleTVCheck();
+			//Options given on the command line come first, so lines can override them
+			List<String> arguments = new ArrayList<String>();
+			arguments.add("-start");
+			this.addArgument(arguments, "-tvIP", this.parameters.tvIP);
+			this.addArgument(arguments, "-hueIP", this.parameters.hueIP);
+			this.addArgument(arguments, "-hueUser", this.parameters.hueUser);
+			arguments.addAll(new StrTokenizer(line).setQuoteChar('"').getTokenList());
+
+			Parameters instance = this.parameters.copy();
+			instance.config = null;
+			//Instances must not write to the same recording
+			instance.record = null;
+			try {
+				new CmdLineParser(instance).parseArgument(arguments);
+			} catch (Exception e) {
+				logger.error("Skipping line " + (i + 1) + " of " + this.parameters.config + ": " + e.getMessage());
+				continue;
 			}
-		});
-		
-		logger.debug("Entering infinite wait loop");
-		Object obj = new Object();
-		synchronized (obj) {
-			obj.wait();
+
+			//Names keep the bridge groups of the instances apart
+			if (instance.name == null)
+				instance.name = instance.tvIP;
+			logger.debug("Instance parameters: " + instance);
+			result.add(instance);
 		}
+		return result;
+	}
+	private void addArgument(List<String> arguments, String option, String value) {
+		if (value == null)
+			return;
+
+		arguments.add(option);
+		arguments.add(value);
 	}
 }
@@ -0,0 +1,353 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+
+// Single pass pull parser for the /1/ambilight/processed response.
+// Works directly on the response bytes and writes the color values into reusable
+// primitive buffers - neither a JSON tree nor any key strings are created.
+public final class StreamingAmbilightParser implements AmbilightParser {
+	private final static int MAX_INDEX = 1024;
+	private final static int MAX_COLOR_VALUE = 255;
+	private final static byte[] LAYER_KEY = "layer1".getBytes(StandardCharsets.US_ASCII);
+	private final static Position[] POSITIONS = Position.values();
+	private final static byte[][] POSITION_KEYS;
+	static {
+		POSITION_KEYS = new byte[POSITIONS.length][];
+		for (Position position : POSITIONS)
+			POSITION_KEYS[position.ordinal()] = position.name().toLowerCase().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private final byte[] readBuffer;
+	private final byte[] key;
+	private final byte[][] colors;
+	private final int[] dimensions;
+	private final int[] entries;
+	private final boolean[] found;
+	// Indices read per position - with duplicates rejected, the entry count tells whether an index is missing
+	private final boolean[][] seen;
+
+	private InputStream input;
+	private int readPosition;
+	private int readLimit;
+	private int keyLength;
+
+	public StreamingAmbilightParser() {
+		this.readBuffer = new byte[4096];
+		this.key = new byte[16];
+		this.colors = new byte[POSITION_KEYS.length][];
+		this.dimensions = new int[POSITION_KEYS.length];
+		this.entries = new int[POSITION_KEYS.length];
+		this.found = new boolean[POSITION_KEYS.length];
+		this.seen = new boolean[POSITION_KEYS.length][MAX_INDEX];
+
+		for (int i = 0; i < this.colors.length; i++)
+			this.colors[i] = new byte[3 * 32];
+	}
+
+	@Override
+	public void parse(InputStream input, AmbilightData target) throws IOException {
+		assert input != null;
+		assert target != null;
+
+		this.input = input;
+		this.readPosition = 0;
+		this.readLimit = 0;
+		//The dimensions of the last response cover every index it marked, even if it failed
+		for (int i = 0; i < this.seen.length; i++)
+			Arrays.fill(this.seen[i], 0, this.dimensions[i], false);
+		Arrays.fill(this.dimensions, 0);
+		Arrays.fill(this.entries, 0);
+		Arrays.fill(this.found, false);
+
+		try {
+			if (!this.parseRoot())
+				throw new IOException("layer1 missing in ambilight response");
+		} finally {
+			this.input = null;
+		}
+
+		for (int i = 0; i < this.found.length; i++) {
+			if (!this.found[i])
+				throw new IOException("Position missing in ambilight response: " + POSITIONS[i]);
+			if (this.entries[i] != this.dimensions[i])
+				throw new IOException("Incomplete indices in ambilight response: " + POSITIONS[i]);
+		}
+
+		target.resize(
+				this.dimensions[Position.Left.ordinal()],
+				this.dimensions[Position.Top.ordinal()],
+				this.dimensions[Position.Right.ordinal()],
+				this.dimensions[Position.Bottom.ordinal()]);
+		for (Position position : POSITIONS)
+			target.setColors(position, this.colors[position.ordinal()]);
+	}
+
+	private boolean parseRoot() throws IOException {
+		boolean layerFound = false;
+
+		this.expect('{');
+		for (boolean first = true; this.nextMember(first); first = false) {
+			if (!layerFound && this.keyEquals(LAYER_KEY)) {
+				this.parseLayer();
+				layerFound = true;
+			} else {
+				this.skipValue();
+			}
+		}
+
+		return layerFound;
+	}
+
+	private void parseLayer() throws IOException {
+		this.expect('{');
+		for (boolean first = true; this.nextMember(first); first = false) {
+			int position = this.keyAsPosition();
+			if (position < 0 || this.found[position]) {
+				this.skipValue();
+				continue;
+			}
+
+			this.found[position] = true;
+			this.parsePosition(position);
+		}
+	}
+
+	private void parsePosition(int position) throws IOException {
+		this.expect('{');
+		for (boolean first = true; this.nextMember(first); first = false) {
+			int index = this.keyAsIndex();
+			if (index < 0)
+				throw new IOException("Invalid ambilight index");
+
+			this.parseColor(position, index);
+		}
+	}
+
+	private void parseColor(int position, int index) throws IOException {
+		//A duplicate would leave another index with the colors of the previous frame
+		if (this.seen[position][index])
+			throw new IOException("Duplicate index in ambilight response: " + POSITIONS[position] + " " + index);
+		this.seen[position][index] = true;
+		if (index >= this.dimensions[position])
+			this.dimensions[position] = index + 1;
+
+		byte[] values = this.ensureCapacity(position, index);
+		int offset = 3 * index;
+		values[offset] = 0;
+		values[offset + 1] = 0;
+		values[offset + 2] = 0;
+
+		this.expect('{');
+		for (boolean first = true; this.nextMember(first); first = false) {
+			int channel = this.keyAsChannel();
+			if (channel < 0)
+				this.skipValue();
+			else
+				values[offset + channel] = (byte) this.readColorValue();
+		}
+
+		this.entries[position]++;
+	}
+
+	private byte[] ensureCapacity(int position, int index) {
+		byte[] values = this.colors[position];
+		if (3 * (index + 1) <= values.length)
+			return values;
+
+		values = Arrays.copyOf(values, Math.max(values.length * 2, 3 * (index + 1)));
+		this.colors[position] = values;
+		return values;
+	}
+
+	// Reads the key of the next member of the current object into the key buffer
+	// Returns false if the end of the object has been reached
+	private boolean nextMember(boolean first) throws IOException {
+		int c = this.nextNonWhitespace();
+		if (c == '}')
+			return false;
+
+		if (!first) {
+			if (c != ',')
+				throw this.unexpected(c);
+			c = this.nextNonWhitespace();
+		}
+		if (c != '"')
+			throw this.unexpected(c);
+
+		this.keyLength = 0;
+		while ((c = this.read()) != '"') {
+			if (c < 0)
+				throw this.unexpected(c);
+			if (c == '\\')
+				c = this.read();
+
+			if (this.keyLength < this.key.length)
+				this.key[this.keyLength] = (byte) c;
+			this.keyLength++;
+		}
+
+		this.expect(':');
+		return true;
+	}
+
+	private boolean keyEquals(byte[] expected) {
+		if (this.keyLength != expected.length)
+			return false;
+
+		for (int i = 0; i < expected.length; i++) {
+			if (this.key[i] != expected[i])
+				return false;
+		}
+		return true;
+	}
+
+	private int keyAsPosition() {
+		for (int i = 0; i < POSITION_KEYS.length; i++) {
+			if (this.keyEquals(POSITION_KEYS[i]))
+				return i;
+		}
+		return -1;
+	}
+
+	private int keyAsIndex() {
+		if (this.keyLength == 0 || this.keyLength > 4)
+			return -1;
+
+		int result = 0;
+		for (int i = 0; i < this.keyLength; i++) {
+			int digit = this.key[i] - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			result = result * 10 + digit;
+		}
+		return result < MAX_INDEX ? result : -1;
+	}
+
+	private int keyAsChannel() {
+		if (this.keyLength != 1)
+			return -1;
+
+		switch (this.key[0]) {
+		case 'r':
+			return 0;
+		case 'g':
+			return 1;
+		case 'b':
+			return 2;
+		default:
+			return -1;
+		}
+	}
+
+	// Parses the integer part of a JSON number, fractions and exponents are ignored.
+	// Values beyond a color channel are rejected, so long digit runs cannot overflow
+	private int readColorValue() throws IOException {
+		int c = this.nextNonWhitespace();
+		if (c < '0' || c > '9')
+			throw this.unexpected(c);
+
+		int result = 0;
+		while (true) {
+			result = result * 10 + (c - '0');
+			if (result > MAX_COLOR_VALUE)
+				throw new IOException("Color value out of range in ambilight response");
+
+			c = this.peek();
+			if (c < '0' || c > '9')
+				break;
+			this.readPosition++;
+		}
+		this.skipLiteral();
+
+		return result;
+	}
+
+	private void skipValue() throws IOException {
+		int c = this.nextNonWhitespace();
+		if (c == '"') {
+			this.skipString();
+		} else if (c == '{' || c == '[') {
+			int depth = 1;
+			while (depth > 0) {
+				c = this.read();
+				if (c < 0)
+					throw this.unexpected(c);
+				else if (c == '"')
+					this.skipString();
+				else if (c == '{' || c == '[')
+					depth++;
+				else if (c == '}' || c == ']')
+					depth--;
+			}
+		} else if (c < 0) {
+			throw this.unexpected(c);
+		} else {
+			this.skipLiteral();
+		}
+	}
+
+	private void skipLiteral() throws IOException {
+		while (true) {
+			int c = this.peek();
+			if (c < 0 || c == ',' || c == '}' || c == ']' || isWhitespace(c))
+				return;
+			this.readPosition++;
+		}
+	}
+
+	private void skipString() throws IOException {
+		int c;
+		while ((c = this.read()) != '"') {
+			if (c < 0)
+				throw this.unexpected(c);
+			if (c == '\\')
+				this.read();
+		}
+	}
+
+	private void expect(char expected) throws IOException {
+		int c = this.nextNonWhitespace();
+		if (c != expected)
+			throw this.unexpected(c);
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c;
+		do {
+			c = this.read();
+		} while (isWhitespace(c));
+		return c;
+	}
+
+	private int read() throws IOException {
+		int c = this.peek();
+		if (c >= 0)
+			this.readPosition++;
+		return c;
+	}
+
+	private int peek() throws IOException {
+		if (this.readPosition >= this.readLimit) {
+			this.readPosition = 0;
+			this.readLimit = Math.max(this.input.read(this.readBuffer), 0);
+			if (this.readLimit == 0)
+				return -1;
+		}
+		return this.readBuffer[this.readPosition] & 0xFF;
+	}
+
+	private IOException unexpected(int c) {
+		if (c < 0)
+			return new IOException("Unexpected end of ambilight response");
+		return new IOException("Unexpected character in ambilight response: " + (char) c);
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+}
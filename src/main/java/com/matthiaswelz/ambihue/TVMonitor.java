@@ -0,0 +1,173 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Watches the TV while ambihue is not running. Checks probe the TV with a plain TCP connect,
+// only a TV accepting connections is asked for its ambilight. After the TV was lost or changed
+// its state, checks run in a burst of short intervals, so a TV which was only briefly unavailable
+// or is just booting is found quickly. Afterwards the interval backs off exponentially (with jitter)
+// up to maxIntervalMs in every state, so a TV turned on again is found within maxIntervalMs.
+public final class TVMonitor implements AutoCloseable {
+	static Logger logger = LogManager.getLogger();
+
+	public enum State {
+		// The ambilight can be read
+		On,
+		// The TV accepts connections, but the ambilight cannot be read
+		Standby,
+		// The TV refuses connections
+		Off,
+		// The TV does not answer
+		Unreachable
+	}
+
+	public interface Listener {
+		// The frame read by the check, showing the LED layout of the TV
+		void tvOn(AmbilightData frame);
+	}
+
+	// Checks at minIntervalMs after losing the TV or a state change
+	private final static int BURST_CHECKS = 8;
+	private final static double BACKOFF_FACTOR = 2;
+	// Intervals vary randomly by this fraction, so checks of several TVs do not line up
+	private final static double JITTER = 0.2;
+
+	private final String name;
+	private final String host;
+	private final int port;
+	private final int timeoutMs;
+	private final AmbilightReader reader;
+	private final TickScheduler scheduler;
+	private final Listener listener;
+	private final int minIntervalMs;
+	private final int maxIntervalMs;
+
+	// Guarded by this
+	private State state;
+	private TickScheduler.Ticker ticker;
+	private int checks;
+	private double intervalMs;
+	// Only used by the thread running the checks
+	private AmbilightData frame;
+
+	public TVMonitor(String name, String host, int port, int timeoutMs, AmbilightReader reader, TickScheduler scheduler,
+			int minIntervalMs, int maxIntervalMs, Listener listener) {
+		logger.trace("TVMonitor()");
+
+		assert reader != null;
+		assert scheduler != null;
+		assert listener != null;
+		assert minIntervalMs > 0;
+		assert maxIntervalMs >= minIntervalMs;
+
+		this.name = name;
+		this.host = host;
+		this.port = port;
+		this.timeoutMs = timeoutMs;
+		this.reader = reader;
+		this.scheduler = scheduler;
+		this.listener = listener;
+		this.minIntervalMs = minIntervalMs;
+		this.maxIntervalMs = maxIntervalMs;
+	}
+
+	// Starts checking for the TV, unless already checking
+	public synchronized void start() {
+		logger.trace("start()");
+
+		if (this.ticker != null)
+			return;
+
+		logger.debug("Checking TV " + this.host);
+		this.checks = 0;
+		this.intervalMs = this.minIntervalMs;
+
+		String task = this.name != null ? "tv-check-" + this.name : "tv-check";
+		this.ticker = this.scheduler.scheduleAtFixedRate(task, 0, this.minIntervalMs, new Runnable() {
+			@Override
+			public void run() {
+				TVMonitor.this.check();
+			}
+		});
+	}
+
+	public synchronized State getState() {
+		return this.state;
+	}
+
+	@Override
+	public synchronized void close() {
+		logger.trace("close()");
+
+		if (this.ticker != null) {
+			this.ticker.cancel();
+			this.ticker = null;
+		}
+	}
+
+	private void check() {
+		logger.trace("Checking TV");
+
+		State state = this.probe();
+		synchronized (this) {
+			if (this.ticker == null)
+				return;
+
+			if (state != this.state) {
+				logger.info("TV " + this.host + " is " + state);
+				this.state = state;
+				this.checks = 0;
+				this.intervalMs = this.minIntervalMs;
+			}
+
+			if (state == State.On) {
+				this.ticker.cancel();
+				this.ticker = null;
+			} else {
+				this.ticker.setPeriodMs(this.nextIntervalMs(state));
+			}
+		}
+
+		if (state == State.On)
+			this.listener.tvOn(this.frame);
+	}
+
+	private State probe() {
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(this.host, this.port), this.timeoutMs);
+		} catch (ConnectException e) {
+			logger.trace("Connection refused");
+			return State.Off;
+		} catch (IOException e) {
+			//A timeout or no route to host - a TV in deep standby or with its network turned off looks like this.
+			//Only the connect is tried, so checking it as often as a TV which is off costs no more
+			logger.trace("No connection", e);
+			return State.Unreachable;
+		}
+
+		try {
+			this.frame = this.reader.tryReadColors();
+			return this.frame != null ? State.On : State.Standby;
+		} catch (Exception e) {
+			logger.trace("Reading ambilight failed", e);
+			return State.Standby;
+		}
+	}
+
+	private long nextIntervalMs(State state) {
+		this.checks++;
+		if (this.checks > BURST_CHECKS)
+			this.intervalMs = Math.min(this.intervalMs * BACKOFF_FACTOR, this.maxIntervalMs);
+
+		//Jitter never exceeds maxIntervalMs, which bounds the time to find a TV turned on again
+		double jitter = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+		return Math.max(Math.min(Math.round(this.intervalMs * jitter), this.maxIntervalMs), 1);
+	}
+}
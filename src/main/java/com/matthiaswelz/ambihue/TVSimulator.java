@@ -0,0 +1,185 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Serves /1/ambilight/processed like a Philips TV. All LEDs show the same color, which cycles
+// through PALETTE every switchIntervalMs, so the time a color reaches a light can be measured.
+// Responses are delayed by latencyMs plus a random jitter, failureRate of the requests fail.
+// With a replay, the TV shows the frames of a recording instead.
+public final class TVSimulator implements AutoCloseable {
+	static Logger logger = LogManager.getLogger();
+
+	// Colors far apart in CIE xy
+	final static int[][] PALETTE = {
+		{ 255, 0, 0 }, { 0, 255, 0 }, { 0, 0, 255 }, { 255, 255, 0 }, { 0, 255, 255 }, { 255, 0, 255 }
+	};
+
+	private final HttpServer server;
+	private final int ledsPerSide;
+	private final int latencyMs;
+	private final int jitterMs;
+	private final double failureRate;
+	private final long switchIntervalMs;
+	private final long start;
+	private final FrameReplay replay;
+
+	private final AtomicLong served;
+	private final AtomicLong failed;
+
+	public TVSimulator(int port, int ledsPerSide, int latencyMs, int jitterMs, double failureRate, long switchIntervalMs) throws IOException {
+		this(port, ledsPerSide, latencyMs, jitterMs, failureRate, switchIntervalMs, null);
+	}
+	// Shows the frames of the replay, answering without delay
+	public TVSimulator(int port, FrameReplay replay) throws IOException {
+		this(port, 1, 0, 0, 0, Long.MAX_VALUE, replay);
+
+		assert replay != null;
+	}
+	private TVSimulator(int port, int ledsPerSide, int latencyMs, int jitterMs, double failureRate, long switchIntervalMs, FrameReplay replay) throws IOException {
+		logger.trace("TVSimulator()");
+
+		assert ledsPerSide > 0;
+		assert switchIntervalMs > 0;
+
+		this.ledsPerSide = ledsPerSide;
+		this.latencyMs = latencyMs;
+		this.jitterMs = jitterMs;
+		this.failureRate = failureRate;
+		this.switchIntervalMs = switchIntervalMs;
+		this.start = System.currentTimeMillis();
+		this.replay = replay;
+		this.served = new AtomicLong();
+		this.failed = new AtomicLong();
+
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.server.createContext("/1/ambilight/processed", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				TVSimulator.this.serve(exchange);
+			}
+		});
+		this.server.setExecutor(Executors.newCachedThreadPool());
+		this.server.start();
+
+		logger.info("TV simulator listening on port " + this.getPort());
+	}
+
+	public int getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+	// Index in PALETTE of the color shown at the given time, and the time it has been shown since
+	public int getColorIndex(long timeMs) {
+		return (int) ((timeMs - this.start) / this.switchIntervalMs % PALETTE.length);
+	}
+	public long getColorStart(long timeMs) {
+		return timeMs - (timeMs - this.start) % this.switchIntervalMs;
+	}
+
+	public long getServed() {
+		return this.served.get();
+	}
+	public long getFailed() {
+		return this.failed.get();
+	}
+	public void resetStatistics() {
+		this.served.set(0);
+		this.failed.set(0);
+	}
+
+	@Override
+	public void close() {
+		logger.trace("close()");
+
+		this.server.stop(0);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		try {
+			long delay = this.latencyMs + (this.jitterMs > 0 ? random.nextInt(this.jitterMs + 1) : 0);
+			if (delay > 0)
+				Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (random.nextDouble() < this.failureRate) {
+			this.failed.incrementAndGet();
+			exchange.sendResponseHeaders(503, -1);
+			exchange.close();
+			return;
+		}
+
+		byte[] response;
+		if (this.replay != null) {
+			AmbilightData frame = new AmbilightData();
+			this.replay.getFrame(System.nanoTime(), frame);
+			response = this.createResponse(frame);
+		} else {
+			response = this.createResponse(PALETTE[this.getColorIndex(System.currentTimeMillis())]);
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, response.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(response);
+		}
+		this.served.incrementAndGet();
+	}
+
+	// Left and right have ledsPerSide LEDs, top and bottom twice as many
+	private byte[] createResponse(int[] color) {
+		String[] sides = { "left", "top", "right", "bottom" };
+
+		StringBuilder result = new StringBuilder("{\"layer1\":{");
+		for (int side = 0; side < sides.length; side++) {
+			if (side > 0)
+				result.append(',');
+			result.append('"').append(sides[side]).append("\":{");
+
+			int leds = side % 2 == 0 ? this.ledsPerSide : 2 * this.ledsPerSide;
+			for (int i = 0; i < leds; i++) {
+				if (i > 0)
+					result.append(',');
+				result.append('"').append(i).append("\":{\"r\":").append(color[0])
+					.append(",\"g\":").append(color[1])
+					.append(",\"b\":").append(color[2]).append('}');
+			}
+			result.append('}');
+		}
+		return result.append("}}").toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private byte[] createResponse(AmbilightData frame) {
+		StringBuilder result = new StringBuilder("{\"layer1\":{");
+		for (Position position : Position.values()) {
+			if (position.ordinal() > 0)
+				result.append(',');
+			result.append('"').append(position.name().toLowerCase()).append("\":{");
+
+			for (int i = 0; i < frame.getDimension(position); i++) {
+				if (i > 0)
+					result.append(',');
+				result.append('"').append(i).append("\":{\"r\":").append(frame.getRed(position, i))
+					.append(",\"g\":").append(frame.getGreen(position, i))
+					.append(",\"b\":").append(frame.getBlue(position, i)).append('}');
+			}
+			result.append('}');
+		}
+		return result.append("}}").toString().getBytes(StandardCharsets.US_ASCII);
+	}
+}
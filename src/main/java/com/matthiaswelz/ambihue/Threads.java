@@ -0,0 +1,99 @@
+package com.matthiaswelz.ambihue;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Creates the threads of ambihue. On Java 21 and later, threads which mostly block on I/O
+// (reading the TV, waiting for frames) are virtual threads, so concurrent requests do not cost
+// a platform thread and its stack each. Older runtimes get daemon platform threads.
+// Virtual threads are created via reflection, so the code still builds for Java 7.
+public final class Threads {
+	static Logger logger = LogManager.getLogger();
+
+	private static volatile boolean virtualThreadsEnabled = true;
+
+	private Threads() {
+	}
+
+	public static void setVirtualThreadsEnabled(boolean enabled) {
+		virtualThreadsEnabled = enabled;
+	}
+	public static boolean isUsingVirtualThreads() {
+		return virtualThreadsEnabled && VirtualThreads.FACTORY_BUILDER != null;
+	}
+
+	// Threads named name-1, name-2, ... - virtual threads if available
+	public static ThreadFactory factory(String name) {
+		if (isUsingVirtualThreads()) {
+			try {
+				return VirtualThreads.factory(name);
+			} catch (Exception e) {
+				logger.warn("Creating virtual threads failed - using platform threads", e);
+			}
+		}
+
+		return platformFactory(name);
+	}
+	public static ThreadFactory platformFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + this.count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	public static Thread start(String name, Runnable runnable) {
+		Thread thread = factory(name).newThread(runnable);
+		thread.start();
+		return thread;
+	}
+
+	// Runs tasks on at most threads platform threads, or on a new virtual thread each
+	public static ExecutorService newExecutor(String name, int threads) {
+		if (isUsingVirtualThreads()) {
+			try {
+				return VirtualThreads.newExecutor(name);
+			} catch (Exception e) {
+				logger.warn("Creating virtual thread executor failed - using platform threads", e);
+			}
+		}
+
+		return Executors.newFixedThreadPool(threads, platformFactory(name));
+	}
+
+	// Access to the Java 21 API, resolved once
+	private static final class VirtualThreads {
+		private final static Method FACTORY_BUILDER = find(Thread.class, "ofVirtual");
+
+		private static ThreadFactory factory(String name) throws Exception {
+			// Methods of the public interface - the builder implementation is not accessible
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			Object builder = FACTORY_BUILDER.invoke(null);
+			builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+			return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+		}
+		private static ExecutorService newExecutor(String name) throws Exception {
+			Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, factory(name));
+		}
+
+		private static Method find(Class<?> type, String name) {
+			try {
+				return type.getMethod(name);
+			} catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+	}
+}
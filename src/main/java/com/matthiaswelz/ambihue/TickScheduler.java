@@ -0,0 +1,157 @@
+package com.matthiaswelz.ambihue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Runs tasks at a fixed rate. Every tick has a deadline on a fixed grid (start + n * period),
+// so delays of single ticks do not accumulate. If a tick overruns, all ticks that are due by then
+// are coalesced into a single tick which runs immediately.
+public final class TickScheduler implements AutoCloseable {
+	static Logger logger = LogManager.getLogger();
+
+	public final class Ticker implements Runnable {
+		private final String name;
+		private final Runnable task;
+		private volatile long periodNanos;
+
+		private volatile boolean cancelled;
+		private long deadline;
+		private ScheduledFuture<?> future;
+
+		// Guarded by this
+		private long ticks;
+		private long skippedTicks;
+		private long totalLatenessNanos;
+		private long maxLatenessNanos;
+
+		private Ticker(String name, Runnable task, long periodNanos) {
+			this.name = name;
+			this.task = task;
+			this.periodNanos = periodNanos;
+		}
+
+		@Override
+		public void run() {
+			if (this.cancelled)
+				return;
+
+			long lateness = System.nanoTime() - this.deadline;
+			try {
+				this.task.run();
+			} catch (Throwable e) {
+				logger.error("Error during tick " + this.name, e);
+			}
+
+			long now = System.nanoTime();
+			long period = this.periodNanos;
+			long next = this.deadline + period;
+			long skipped = 0;
+			if (now > next) {
+				// Overrun - coalesce all ticks due by now
+				skipped = (now - next) / period;
+				next += skipped * period;
+			}
+			this.deadline = next;
+
+			synchronized (this) {
+				this.ticks++;
+				this.skippedTicks += skipped;
+				if (skipped > 0)
+					Metrics.add(Metrics.Counter.CoalescedTicks, skipped);
+				this.totalLatenessNanos += lateness;
+				this.maxLatenessNanos = Math.max(this.maxLatenessNanos, lateness);
+
+				if (!this.cancelled)
+					this.future = TickScheduler.this.executor.schedule(this, Math.max(next - now, 0), TimeUnit.NANOSECONDS);
+			}
+		}
+
+		public void cancel() {
+			logger.trace("Cancelling ticker " + this.name);
+
+			this.cancelled = true;
+			synchronized (this) {
+				if (this.future != null)
+					this.future.cancel(false);
+			}
+		}
+
+		// Takes effect from the next tick on
+		public void setPeriodMs(long periodMs) {
+			assert periodMs > 0;
+
+			this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+		}
+		public long getPeriodMs() {
+			return TimeUnit.NANOSECONDS.toMillis(this.periodNanos);
+		}
+
+		public synchronized long getTicks() {
+			return this.ticks;
+		}
+		public synchronized long getSkippedTicks() {
+			return this.skippedTicks;
+		}
+		public synchronized double getAverageLatenessMs() {
+			if (this.ticks == 0)
+				return 0;
+
+			return this.totalLatenessNanos / 1e6 / this.ticks;
+		}
+		public synchronized double getMaxLatenessMs() {
+			return this.maxLatenessNanos / 1e6;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return new ToStringBuilder(this)
+					.append("name", this.name)
+					.append("periodMs", this.getPeriodMs())
+					.append("ticks", this.ticks)
+					.append("skippedTicks", this.skippedTicks)
+					.append("averageLatenessMs", String.format("%.2f", this.getAverageLatenessMs()))
+					.append("maxLatenessMs", String.format("%.2f", this.getMaxLatenessMs()))
+					.build();
+		}
+
+		private synchronized void start(long initialDelayNanos) {
+			this.deadline = System.nanoTime() + initialDelayNanos;
+			this.future = TickScheduler.this.executor.schedule(this, initialDelayNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private final ScheduledExecutorService executor;
+
+	public TickScheduler(String name, int threads) {
+		logger.trace("TickScheduler()");
+
+		assert threads > 0;
+
+		// Ticks need to run on time, so the scheduler keeps platform threads
+		this.executor = Executors.newScheduledThreadPool(threads, Threads.platformFactory(name));
+	}
+
+	public Ticker scheduleAtFixedRate(String name, long initialDelayMs, long periodMs, Runnable task) {
+		logger.trace("Scheduling ticker " + name);
+
+		assert periodMs > 0;
+		assert task != null;
+
+		Ticker ticker = new Ticker(name, task, TimeUnit.MILLISECONDS.toNanos(periodMs));
+		ticker.start(TimeUnit.MILLISECONDS.toNanos(initialDelayMs));
+		return ticker;
+	}
+
+	@Override
+	public void close() {
+		logger.trace("close()");
+
+		this.executor.shutdownNow();
+	}
+}
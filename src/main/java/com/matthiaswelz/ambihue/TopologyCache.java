@@ -0,0 +1,168 @@
+package com.matthiaswelz.ambihue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+
+// Lights of the bridges and LED layouts of the TVs seen by earlier runs, so ambihue can start
+// before the bridge is connected. The cache is only a head start: the bridge reconciles it once
+// connected. A missing or broken cache file is ignored. Thread safe.
+public final class TopologyCache {
+	static Logger logger = LogManager.getLogger();
+
+	private final static Position[] POSITIONS = Position.values();
+
+	public static final class Light {
+		private final String name;
+		private final String identifier;
+		private final String modelNumber;
+
+		public Light(String name, String identifier, String modelNumber) {
+			this.name = name;
+			this.identifier = identifier;
+			this.modelNumber = modelNumber;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+		public String getIdentifier() {
+			return this.identifier;
+		}
+		public String getModelNumber() {
+			return this.modelNumber;
+		}
+	}
+
+	private final File file;
+	// Guarded by this
+	private final JSONObject root;
+	private boolean dirty;
+
+	private TopologyCache(File file, JSONObject root) {
+		this.file = file;
+		this.root = root;
+	}
+
+	public static TopologyCache load(File file) {
+		logger.trace("load()");
+
+		JSONObject root = null;
+		if (file.isFile()) {
+			try {
+				root = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+				logger.debug("Topology cache loaded from " + file);
+			} catch (Exception e) {
+				logger.warn("Ignoring unreadable topology cache " + file + ": " + e.getMessage());
+			}
+		}
+		return new TopologyCache(file, root != null ? root : new JSONObject());
+	}
+
+	// Host name of this device, as reported to the bridge
+	public synchronized String getDeviceName() {
+		return this.root.optString("deviceName", null);
+	}
+	public synchronized void setDeviceName(String deviceName) {
+		this.put(this.root, "deviceName", deviceName);
+	}
+
+	// The lights of the bridge, or null if the bridge is unknown
+	public synchronized List<Light> getLights(String bridgeIP) {
+		JSONObject bridge = this.getObject("bridges").optJSONObject(bridgeIP);
+		JSONArray lights = bridge != null ? bridge.optJSONArray("lights") : null;
+		if (lights == null)
+			return null;
+
+		List<Light> result = new ArrayList<Light>();
+		for (int i = 0; i < lights.length(); i++) {
+			JSONObject light = lights.optJSONObject(i);
+			if (light != null)
+				result.add(new Light(light.optString("name"), light.optString("id"), light.optString("model", null)));
+		}
+		return Collections.unmodifiableList(result);
+	}
+	public synchronized void setLights(String bridgeIP, List<Light> lights) {
+		JSONArray array = new JSONArray();
+		for (Light light : lights) {
+			array.put(new JSONObject()
+					.put("name", light.getName())
+					.put("id", light.getIdentifier())
+					.putOpt("model", light.getModelNumber()));
+		}
+
+		JSONObject bridges = this.getObject("bridges");
+		JSONObject bridge = bridges.optJSONObject(bridgeIP);
+		if (bridge == null) {
+			bridge = new JSONObject();
+			bridges.put(bridgeIP, bridge);
+		}
+		this.put(bridge, "lights", array);
+	}
+
+	// The LED layout of the TV as an empty frame, or null if the TV is unknown
+	public synchronized AmbilightData getLayout(String tvHost, int tvPort) {
+		JSONArray dimensions = this.getObject("tvs").optJSONArray(tvHost + ":" + tvPort);
+		if (dimensions == null || dimensions.length() != POSITIONS.length)
+			return null;
+
+		AmbilightData layout = new AmbilightData();
+		layout.resize(dimensions.optInt(0), dimensions.optInt(1), dimensions.optInt(2), dimensions.optInt(3));
+		return layout;
+	}
+	public synchronized void setLayout(String tvHost, int tvPort, AmbilightData frame) {
+		JSONArray dimensions = new JSONArray();
+		for (Position position : POSITIONS)
+			dimensions.put(frame.getDimension(position));
+		this.put(this.getObject("tvs"), tvHost + ":" + tvPort, dimensions);
+	}
+
+	// Writes the cache if it changed. The file is replaced at once, so a crash cannot leave a partial cache
+	public synchronized void save() {
+		if (!this.dirty)
+			return;
+
+		logger.debug("Saving topology cache to " + this.file);
+		try {
+			File directory = this.file.getAbsoluteFile().getParentFile();
+			File temporary = File.createTempFile(this.file.getName(), ".tmp", directory);
+			Files.write(temporary.toPath(), this.root.toString(2).getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.dirty = false;
+		} catch (IOException e) {
+			logger.warn("Saving topology cache " + this.file + " failed: " + e.getMessage());
+		}
+	}
+
+	private JSONObject getObject(String key) {
+		JSONObject result = this.root.optJSONObject(key);
+		if (result == null) {
+			result = new JSONObject();
+			this.root.put(key, result);
+		}
+		return result;
+	}
+	private void put(JSONObject object, String key, Object value) {
+		Object previous = object.opt(key);
+		boolean same = previous instanceof JSONObject ? ((JSONObject) previous).similar(value)
+				: previous instanceof JSONArray ? ((JSONArray) previous).similar(value)
+				: previous != null && previous.equals(value);
+		if (same)
+			return;
+
+		object.put(key, value);
+		this.dirty = true;
+	}
+}
@@ -0,0 +1,40 @@
+package com.matthiaswelz.ambihue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class AmbihueInstanceTest {
+	// A bad line of -config is skipped, it must not leave a refresh thread behind
+	@Test
+	public void invalidMappingLeaksNoThread() throws Exception {
+		Parameters parameters = new Parameters();
+		parameters.tvIP = "127.0.0.1";
+		parameters.mappings.add("Couch:Left");
+		parameters.mappings.add("Shelf:Lfet");
+
+		int threads = countRefreshThreads();
+		try (TickScheduler scheduler = new TickScheduler("test", 1)) {
+			HueController hueController = new HueController(scheduler, 10, 0, 0, "ambihue-test");
+			try {
+				new AmbihueInstance(parameters, scheduler, hueController, null).close();
+				fail("Instance with invalid mapping created");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			} finally {
+				hueController.close();
+			}
+		}
+		assertEquals(threads, countRefreshThreads());
+	}
+
+	private static int countRefreshThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("hue-refresh") && thread.isAlive())
+				count++;
+		}
+		return count;
+	}
+}
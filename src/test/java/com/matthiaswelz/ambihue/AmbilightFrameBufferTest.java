@@ -0,0 +1,238 @@
+package com.matthiaswelz.ambihue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+
+// Hammers the frame buffer from several threads. A lost wakeup shows as a reader which never
+// returns - every wait is bounded, so it fails the test instead of hanging it
+public class AmbilightFrameBufferTest {
+	private final static int LEDS = 16;
+	private final static long JOIN_TIMEOUT_MS = 10000;
+
+	// Runs the body on a thread, keeping the first failure for the test thread
+	private static abstract class TestThread extends Thread {
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		@Override
+		public void run() {
+			try {
+				this.test();
+			} catch (Throwable e) {
+				this.failure.compareAndSet(null, e);
+			}
+		}
+
+		protected abstract void test() throws Exception;
+
+		private void finish() throws Exception {
+			this.join(JOIN_TIMEOUT_MS);
+			if (this.isAlive()) {
+				this.interrupt();
+				fail(this.getName() + " did not end - lost wakeup");
+			}
+			if (this.failure.get() instanceof Exception)
+				throw (Exception) this.failure.get();
+			if (this.failure.get() != null)
+				throw (Error) this.failure.get();
+		}
+	}
+
+	// wakeUp() before the reader waits is not remembered, so it is repeated until the reader returns
+	@Test
+	public void wakeUpReturnsWithoutFrame() throws Exception {
+		final AmbilightFrameBuffer buffer = new AmbilightFrameBuffer();
+		TestThread reader = new TestThread() {
+			@Override
+			protected void test() throws Exception {
+				assertNull(buffer.awaitLatest());
+			}
+		};
+		reader.start();
+
+		long deadline = System.currentTimeMillis() + JOIN_TIMEOUT_MS;
+		while (reader.isAlive() && System.currentTimeMillis() < deadline) {
+			buffer.wakeUp();
+			Thread.sleep(1);
+		}
+		reader.finish();
+	}
+
+	@Test
+	public void publishWakesReader() throws Exception {
+		final AmbilightFrameBuffer buffer = new AmbilightFrameBuffer();
+		final int frames = 20000;
+		TestThread reader = new TestThread() {
+			@Override
+			protected void test() throws Exception {
+				long last = 0;
+				while (last < frames) {
+					AmbilightData frame = buffer.awaitLatest();
+					if (frame == null)
+						continue;
+
+					assertTrue("Frames out of order", frame.getTimestamp() > last);
+					assertComplete(frame);
+					last = frame.getTimestamp();
+				}
+			}
+		};
+		reader.start();
+
+		//Pauses now and then let the reader park, so publishing has to unpark it
+		for (int i = 1; i <= frames; i++) {
+			publish(buffer, i);
+			if (ThreadLocalRandom.current().nextInt(8) == 0)
+				Thread.yield();
+			else if (ThreadLocalRandom.current().nextInt(64) == 0)
+				LockSupport.parkNanos(50000);
+		}
+		reader.finish();
+	}
+
+	// A close after the reader checked isClosed() but before it waits - the window of the lost wakeup
+	@Test
+	public void awaitLatestReturnsOnceClosed() throws Exception {
+		final AmbilightFrameBuffer buffer = new AmbilightFrameBuffer();
+		buffer.close();
+		TestThread reader = new TestThread() {
+			@Override
+			protected void test() throws Exception {
+				assertNull(buffer.awaitLatest());
+			}
+		};
+		reader.start();
+		reader.finish();
+	}
+
+	// The reader checks isClosed() before every wait - closing at any moment has to end it.
+	// Another thread keeps waking it up, so the close often lands between check and wait
+	@Test
+	public void closeEndsReader() throws Exception {
+		for (int i = 0; i < 5000; i++) {
+			final AmbilightFrameBuffer buffer = new AmbilightFrameBuffer();
+			final CountDownLatch started = new CountDownLatch(2);
+			TestThread reader = new TestThread() {
+				@Override
+				protected void test() throws Exception {
+					started.countDown();
+					while (!buffer.isClosed())
+						buffer.awaitLatest();
+				}
+			};
+			TestThread waker = new TestThread() {
+				@Override
+				protected void test() throws Exception {
+					started.countDown();
+					while (!buffer.isClosed())
+						buffer.wakeUp();
+				}
+			};
+			reader.start();
+			waker.start();
+
+			started.await();
+			LockSupport.parkNanos(ThreadLocalRandom.current().nextInt(100000));
+			buffer.close();
+			waker.finish();
+			reader.finish();
+		}
+	}
+
+	// A writer, a thread waking the reader for interpolation and the reader at once, closed while all are running
+	@Test
+	public void publishWakeUpAndCloseConcurrently() throws Exception {
+		for (int round = 0; round < 200; round++) {
+			final AmbilightFrameBuffer buffer = new AmbilightFrameBuffer();
+			final CountDownLatch started = new CountDownLatch(3);
+			TestThread reader = new TestThread() {
+				@Override
+				protected void test() throws Exception {
+					started.countDown();
+					long last = 0;
+					while (!buffer.isClosed()) {
+						AmbilightData frame = buffer.awaitLatest();
+						if (frame == null)
+							continue;
+
+						assertTrue("Frames out of order", frame.getTimestamp() > last);
+						assertComplete(frame);
+						last = frame.getTimestamp();
+					}
+				}
+			};
+			TestThread writer = new TestThread() {
+				@Override
+				protected void test() throws Exception {
+					started.countDown();
+					for (long i = 1; !buffer.isClosed(); i++)
+						publish(buffer, i);
+				}
+			};
+			TestThread waker = new TestThread() {
+				@Override
+				protected void test() throws Exception {
+					started.countDown();
+					while (!buffer.isClosed())
+						buffer.wakeUp();
+				}
+			};
+			reader.start();
+			writer.start();
+			waker.start();
+
+			started.await();
+			TimeUnit.MICROSECONDS.sleep(ThreadLocalRandom.current().nextInt(2000));
+			buffer.close();
+			reader.finish();
+			writer.finish();
+			waker.finish();
+		}
+	}
+
+	@Test
+	public void takeLatestSkipsToNewestFrame() {
+		AmbilightFrameBuffer buffer = new AmbilightFrameBuffer();
+		assertNull(buffer.takeLatest());
+
+		assertTrue(publish(buffer, 1));
+		assertFalse("Unread frame not reported as dropped", publish(buffer, 2));
+		assertEquals(2, buffer.takeLatest().getTimestamp());
+		assertNull(buffer.takeLatest());
+	}
+
+	// Fills every LED with the sequence number, so a frame mixing two writes can be told apart
+	private static boolean publish(AmbilightFrameBuffer buffer, long sequence) {
+		AmbilightData frame = buffer.getWriteFrame();
+		frame.resize(LEDS, LEDS, LEDS, LEDS);
+		for (Position position : Position.values()) {
+			for (int i = 0; i < LEDS; i++)
+				frame.setColor(position, i, (int) sequence, (int) (sequence >>> 8), (int) (sequence >>> 16));
+		}
+		frame.setTimestamp(sequence);
+		return buffer.publish();
+	}
+
+	private static void assertComplete(AmbilightData frame) {
+		long sequence = frame.getTimestamp();
+		for (Position position : Position.values()) {
+			for (int i = 0; i < LEDS; i++) {
+				assertEquals(sequence & 0xFF, frame.getRed(position, i));
+				assertEquals((sequence >>> 8) & 0xFF, frame.getGreen(position, i));
+				assertEquals((sequence >>> 16) & 0xFF, frame.getBlue(position, i));
+			}
+		}
+	}
+}
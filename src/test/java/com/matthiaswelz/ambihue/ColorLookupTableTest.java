@@ -0,0 +1,63 @@
+package com.matthiaswelz.ambihue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.philips.lighting.hue.sdk.utilities.PHUtilities;
+
+// The lookup table has to stay within its documented error of the SDK conversion
+public class ColorLookupTableTest {
+	// Default gamut, gamut A (LightStrip), B (Hue bulb) and C (Hue bulb, later generations)
+	private final static String[] MODELS = { null, "LST001", "LCT001", "LCT015" };
+
+	@Test
+	public void matchesSDKOnSampledGrid() {
+		for (String model : MODELS) {
+			ColorLookupTable table = ColorLookupTable.forModel(model);
+			float maxError = 0;
+			for (int r = 0; r < 256; r += 5) {
+				for (int g = 0; g < 256; g += 5) {
+					for (int b = 0; b < 256; b += 5)
+						maxError = Math.max(maxError, error(table, model, r, g, b));
+				}
+			}
+			assertTrue(model + ": " + maxError, maxError <= ColorLookupTable.MAX_ERROR);
+		}
+	}
+
+	// Near black and with a weak channel, xy changes fastest
+	@Test
+	public void matchesSDKForDarkColors() {
+		for (String model : MODELS) {
+			ColorLookupTable table = ColorLookupTable.forModel(model);
+			float maxError = 0;
+			for (int r = 0; r < 40; r++) {
+				for (int g = 0; g < 40; g++) {
+					for (int b = 0; b < 40; b++)
+						maxError = Math.max(maxError, error(table, model, r, g, b));
+				}
+			}
+			assertTrue(model + ": " + maxError, maxError <= ColorLookupTable.MAX_ERROR);
+		}
+	}
+
+	@Test
+	public void convertsBlackAsSDK() {
+		for (String model : MODELS) {
+			float[] xy = new float[2];
+			ColorLookupTable.forModel(model).calculateXY(0, 0, 0, xy);
+			float[] expected = PHUtilities.calculateXYFromRGB(0, 0, 0, model);
+			assertEquals(expected[0], xy[0], 0);
+			assertEquals(expected[1], xy[1], 0);
+		}
+	}
+
+	private static float error(ColorLookupTable table, String model, int r, int g, int b) {
+		float[] xy = new float[2];
+		table.calculateXY(r, g, b, xy);
+		float[] expected = PHUtilities.calculateXYFromRGB(r, g, b, model);
+		return (float) Math.hypot(xy[0] - expected[0], xy[1] - expected[1]);
+	}
+}
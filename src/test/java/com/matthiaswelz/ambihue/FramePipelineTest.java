@@ -0,0 +1,48 @@
+package com.matthiaswelz.ambihue;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+
+public class FramePipelineTest {
+	private final static long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Test
+	public void fadesToNewFrame() {
+		FramePipeline pipeline = new FramePipeline(20);
+		assertEquals(10, process(pipeline, frame(2, 0, 2, 0, 10), 0));
+
+		assertEquals(10, process(pipeline, frame(2, 0, 2, 0, 90), FRAME_NANOS));
+		assertEquals(50, process(pipeline, null, FRAME_NANOS + FRAME_NANOS / 2));
+		assertEquals(90, process(pipeline, null, 2 * FRAME_NANOS));
+	}
+
+	@Test
+	public void startsOverOnLayoutChange() {
+		FramePipeline pipeline = new FramePipeline(20);
+		process(pipeline, frame(2, 0, 2, 0, 10), 0);
+
+		//Same number of LEDs, but fading would blend LEDs of different sides
+		assertEquals(90, process(pipeline, frame(1, 1, 1, 1, 90), FRAME_NANOS));
+	}
+
+	// Every LED set to gray
+	private static AmbilightData frame(int left, int top, int right, int bottom, int gray) {
+		AmbilightData frame = new AmbilightData();
+		frame.resize(left, top, right, bottom);
+		for (Position position : Position.values()) {
+			for (int i = 0; i < frame.getDimension(position); i++)
+				frame.setColor(position, i, gray, gray, gray);
+		}
+		return frame;
+	}
+
+	// Returns the red channel of the first LED on the left shown at the given time
+	private static int process(FramePipeline pipeline, AmbilightData frame, long nanoTime) {
+		return pipeline.process(frame, nanoTime).getRed(Position.Left, 0);
+	}
+}
@@ -0,0 +1,141 @@
+package com.matthiaswelz.ambihue;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Streams to a local UDP socket standing in for the bridge and checks the HueStream messages received
+public class HueStreamingOutputTest {
+	private final static int HEADER_LENGTH = 16;
+	private final static int LIGHT_LENGTH = 9;
+
+	private DatagramSocket bridge;
+	private HueController hueController;
+	private HueStreamingOutput output;
+
+	@Before
+	public void setUp() throws Exception {
+		this.bridge = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		this.bridge.setSoTimeout(5000);
+
+		List<TopologyCache.Light> lights = new ArrayList<TopologyCache.Light>();
+		lights.add(new TopologyCache.Light("Couch", "3", "LCT015"));
+		lights.add(new TopologyCache.Light("Shelf", "258", "LCT015"));
+		for (int i = 0; i < HueStreamingOutput.MAX_LIGHTS + 1; i++)
+			lights.add(new TopologyCache.Light("Light " + i, String.valueOf(100 + i), "LCT015"));
+
+		this.hueController = new HueController(null, 0, 0, 0, "ambihue-test");
+		this.hueController.preloadLights(lights);
+		this.output = new HueStreamingOutput(this.hueController, "127.0.0.1", this.bridge.getLocalPort());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.output.close();
+		this.hueController.close();
+		this.bridge.close();
+	}
+
+	@Test
+	public void sendsHueStreamMessage() throws Exception {
+		this.output.setColor("Couch", 255, 0, 128);
+		this.output.setColor("Shelf", 1, 2, 3);
+		this.output.flush();
+
+		byte[] message = this.receive();
+		assertEquals(HEADER_LENGTH + 2 * LIGHT_LENGTH, message.length);
+		assertArrayEquals("HueStream".getBytes(StandardCharsets.US_ASCII), Arrays.copyOf(message, 9));
+		// Version 1.0, sequence 0, reserved, RGB color space, reserved
+		assertArrayEquals(new byte[] { 1, 0, 0, 0, 0, 0, 0 }, Arrays.copyOfRange(message, 9, HEADER_LENGTH));
+
+		assertLight(message, 0, 3, 0xFFFF, 0x0000, 0x8080);
+		assertLight(message, 1, 258, 0x0101, 0x0202, 0x0303);
+	}
+
+	@Test
+	public void sendsOneMessagePerFrame() throws Exception {
+		this.output.setColor("Couch", 10, 20, 30);
+		this.output.flush();
+		assertEquals(0, this.receive()[11]);
+
+		//Nothing changed - nothing sent
+		this.output.flush();
+
+		this.output.setColor("Couch", 40, 50, 60);
+		this.output.flush();
+		byte[] message = this.receive();
+		assertEquals(1, message[11]);
+		assertEquals(HEADER_LENGTH + LIGHT_LENGTH, message.length);
+		assertLight(message, 0, 3, 40 * 257, 50 * 257, 60 * 257);
+	}
+
+	@Test
+	public void skipsUnknownLight() throws Exception {
+		this.output.setColor("Unknown", 1, 2, 3);
+		this.output.setColor("Couch", 4, 5, 6);
+		this.output.setColor("Unknown", 1, 2, 3);
+		this.output.flush();
+
+		byte[] message = this.receive();
+		assertEquals(HEADER_LENGTH + LIGHT_LENGTH, message.length);
+		assertLight(message, 0, 3, 4 * 257, 5 * 257, 6 * 257);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsTooManyLights() {
+		for (int i = 0; i < HueStreamingOutput.MAX_LIGHTS + 1; i++)
+			this.output.setColor("Light " + i, 0, 0, 0);
+	}
+
+	@Test
+	public void rejectsTooManyMappingsAtStartup() throws Exception {
+		Parameters parameters = new Parameters();
+		parameters.tvIP = "127.0.0.1";
+		parameters.output = LightOutput.Type.Streaming;
+		for (int i = 0; i < HueStreamingOutput.MAX_LIGHTS + 1; i++)
+			parameters.mappings.add("Light " + i + ":Left");
+
+		try (TickScheduler scheduler = new TickScheduler("test", 1)) {
+			new AmbihueInstance(parameters, scheduler, this.hueController, null).close();
+			fail("Instance streaming to " + parameters.mappings.size() + " lights created");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	private byte[] receive() throws Exception {
+		DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+		try {
+			this.bridge.receive(packet);
+		} catch (SocketTimeoutException e) {
+			fail("No message received");
+		}
+		return Arrays.copyOf(packet.getData(), packet.getLength());
+	}
+
+	private static void assertLight(byte[] message, int index, int identifier, int r, int g, int b) {
+		int offset = HEADER_LENGTH + index * LIGHT_LENGTH;
+		assertEquals("device type", 0, message[offset]);
+		assertEquals("light id", identifier, readShort(message, offset + 1));
+		assertEquals("red", r, readShort(message, offset + 3));
+		assertEquals("green", g, readShort(message, offset + 5));
+		assertEquals("blue", b, readShort(message, offset + 7));
+	}
+
+	private static int readShort(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xFF) << 8 | buffer[offset + 1] & 0xFF;
+	}
+}
@@ -0,0 +1,61 @@
+package com.matthiaswelz.ambihue;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+
+public class MedianFilterTest {
+	@Test
+	public void takesMedianOfLastFrames() {
+		MedianFilter filter = new MedianFilter(3);
+		assertEquals(10, apply(filter, frame(2, 0, 2, 0), 10));
+		assertEquals(10, apply(filter, frame(2, 0, 2, 0), 10));
+		//Single frame flicker is removed
+		assertEquals(10, apply(filter, frame(2, 0, 2, 0), 255));
+		assertEquals(10, apply(filter, frame(2, 0, 2, 0), 10));
+		assertEquals(10, apply(filter, frame(2, 0, 2, 0), 10));
+		//Lasting changes pass once they are the majority
+		assertEquals(10, apply(filter, frame(2, 0, 2, 0), 80));
+		assertEquals(80, apply(filter, frame(2, 0, 2, 0), 80));
+	}
+
+	@Test
+	public void dropsHistoryOnLayoutChange() {
+		MedianFilter filter = new MedianFilter(3);
+		apply(filter, frame(2, 0, 2, 0), 10);
+		apply(filter, frame(2, 0, 2, 0), 10);
+
+		assertEquals(90, apply(filter, frame(1, 1, 1, 1), 90));
+		assertEquals(90, apply(filter, frame(1, 1, 1, 1), 90));
+		assertEquals(90, apply(filter, frame(1, 1, 1, 1), 30));
+	}
+
+	@Test
+	public void dropsHistoryOnLayoutOfOtherSize() {
+		MedianFilter filter = new MedianFilter(5);
+		apply(filter, frame(2, 0, 2, 0), 10);
+		apply(filter, frame(2, 0, 2, 0), 10);
+		apply(filter, frame(2, 0, 2, 0), 10);
+
+		assertEquals(90, apply(filter, frame(3, 0, 3, 0), 90));
+		assertEquals(90, apply(filter, frame(3, 0, 3, 0), 90));
+	}
+
+	private static AmbilightData frame(int left, int top, int right, int bottom) {
+		AmbilightData frame = new AmbilightData();
+		frame.resize(left, top, right, bottom);
+		return frame;
+	}
+
+	// Sets every LED to gray, returns the red channel of the first LED on the left after filtering
+	private static int apply(MedianFilter filter, AmbilightData frame, int gray) {
+		for (Position position : Position.values()) {
+			for (int i = 0; i < frame.getDimension(position); i++)
+				frame.setColor(position, i, gray, gray, gray);
+		}
+		filter.apply(frame);
+		return frame.getRed(Position.Left, 0);
+	}
+}
@@ -0,0 +1,43 @@
+package com.matthiaswelz.ambihue;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+
+public class SmoothingFilterTest {
+	@Test
+	public void movesTowardsNewColor() {
+		SmoothingFilter filter = new SmoothingFilter(0.5f);
+		assertEquals(10, apply(filter, frame(2, 0, 2, 0), 10));
+		assertEquals(50, apply(filter, frame(2, 0, 2, 0), 90));
+		assertEquals(70, apply(filter, frame(2, 0, 2, 0), 90));
+	}
+
+	@Test
+	public void startsOverOnLayoutChange() {
+		SmoothingFilter filter = new SmoothingFilter(0.5f);
+		apply(filter, frame(2, 0, 2, 0), 10);
+
+		//Same number of LEDs, but the first LED of the buffer belongs to another side now
+		assertEquals(90, apply(filter, frame(1, 1, 1, 1), 90));
+		assertEquals(50, apply(filter, frame(1, 1, 1, 1), 10));
+	}
+
+	private static AmbilightData frame(int left, int top, int right, int bottom) {
+		AmbilightData frame = new AmbilightData();
+		frame.resize(left, top, right, bottom);
+		return frame;
+	}
+
+	// Sets every LED to gray, returns the red channel of the first LED on the left after filtering
+	private static int apply(SmoothingFilter filter, AmbilightData frame, int gray) {
+		for (Position position : Position.values()) {
+			for (int i = 0; i < frame.getDimension(position); i++)
+				frame.setColor(position, i, gray, gray, gray);
+		}
+		filter.apply(frame);
+		return frame.getRed(Position.Left, 0);
+	}
+}
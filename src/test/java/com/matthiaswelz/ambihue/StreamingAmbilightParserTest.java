@@ -0,0 +1,224 @@
+package com.matthiaswelz.ambihue;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.matthiaswelz.ambihue.AmbilightData.Position;
+
+// The streaming parser has to read every response the same as the org.json parser
+public class StreamingAmbilightParserTest {
+	private final static String[] SIDES = { "left", "top", "right", "bottom" };
+	private final static String[] CHANNELS = { "r", "g", "b" };
+
+	// Hands out the response in chunks of random size, down to single bytes
+	private static class ChunkedInputStream extends InputStream {
+		private final InputStream input;
+		private final Random random;
+
+		private ChunkedInputStream(byte[] data, long seed) {
+			this.input = new ByteArrayInputStream(data);
+			this.random = new Random(seed);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return this.input.read();
+		}
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			return this.input.read(buffer, offset, Math.min(length, 1 + this.random.nextInt(7)));
+		}
+	}
+
+	@Test
+	public void parsesAsJSONParser() throws Exception {
+		for (long seed = 0; seed < 20; seed++)
+			assertSameAsJSON(createPayload(seed, false, false, ""));
+	}
+
+	@Test
+	public void parsesChunkedResponse() throws Exception {
+		for (long seed = 0; seed < 20; seed++) {
+			byte[] payload = createPayload(seed, true, true, " \n");
+			assertSameFrame(parse(new JSONAmbilightParser(), new ByteArrayInputStream(payload)),
+					parse(new StreamingAmbilightParser(), new ChunkedInputStream(payload, seed)));
+		}
+	}
+
+	@Test
+	public void parsesReorderedKeys() throws Exception {
+		for (long seed = 0; seed < 20; seed++)
+			assertSameAsJSON(createPayload(seed, true, false, ""));
+	}
+
+	@Test
+	public void skipsExtraMembers() throws Exception {
+		for (long seed = 0; seed < 20; seed++)
+			assertSameAsJSON(createPayload(seed, false, true, ""));
+	}
+
+	@Test
+	public void skipsWhitespace() throws Exception {
+		for (long seed = 0; seed < 20; seed++)
+			assertSameAsJSON(createPayload(seed, true, true, " \t\r\n  "));
+	}
+
+	@Test
+	public void readsFractionsAsJSONParser() throws Exception {
+		String payload = "{\"layer1\":{\"left\":{\"0\":{\"r\":12.7,\"g\":0.0,\"b\":255}},\"top\":{},\"right\":{},\"bottom\":{}}}";
+		assertSameAsJSON(payload.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void reusesTargetAcrossLayouts() throws Exception {
+		StreamingAmbilightParser parser = new StreamingAmbilightParser();
+		AmbilightData target = new AmbilightData();
+		for (long seed = 0; seed < 10; seed++) {
+			byte[] payload = createPayload(seed, true, true, " ");
+			parser.parse(new ByteArrayInputStream(payload), target);
+			assertSameFrame(parse(new JSONAmbilightParser(), new ByteArrayInputStream(payload)), target);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsColorValueOutOfRange() throws Exception {
+		parseColorValue("256");
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsLongDigitRun() throws Exception {
+		parseColorValue("4294967296000000000000000000000000000000000000000000000000000000");
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsNegativeColorValue() throws Exception {
+		parseColorValue("-1");
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsDuplicateIndex() throws Exception {
+		//As many entries as LEDs, but index 1 is missing
+		parseLeft("\"0\":{\"r\":1,\"g\":2,\"b\":3},\"0\":{\"r\":1,\"g\":2,\"b\":3},\"2\":{\"r\":1,\"g\":2,\"b\":3}");
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsMissingIndex() throws Exception {
+		parseLeft("\"0\":{\"r\":1,\"g\":2,\"b\":3},\"2\":{\"r\":1,\"g\":2,\"b\":3}");
+	}
+
+	@Test
+	public void acceptsIndicesAgainAfterFailedResponse() throws Exception {
+		StreamingAmbilightParser parser = new StreamingAmbilightParser();
+		AmbilightData target = new AmbilightData();
+		try {
+			parser.parse(left("\"0\":{\"r\":1,\"g\":2,\"b\":3},\"1\":{\"r\":256"), target);
+		} catch (IOException e) {
+			// Expected
+		}
+
+		parser.parse(left("\"0\":{\"r\":4,\"g\":5,\"b\":6},\"1\":{\"r\":7,\"g\":8,\"b\":9}"), target);
+		assertEquals(2, target.getDimension(Position.Left));
+		assertEquals(7, target.getRed(Position.Left, 1));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsIncompleteResponse() throws Exception {
+		byte[] payload = createPayload(0, false, false, "");
+		parse(new StreamingAmbilightParser(), new ByteArrayInputStream(payload, 0, payload.length / 2));
+	}
+
+	private static void parseColorValue(String value) throws Exception {
+		String payload = "{\"layer1\":{\"left\":{\"0\":{\"r\":" + value + ",\"g\":0,\"b\":0}},\"top\":{},\"right\":{},\"bottom\":{}}}";
+		parse(new StreamingAmbilightParser(), new ByteArrayInputStream(payload.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	private static void parseLeft(String leds) throws Exception {
+		parse(new StreamingAmbilightParser(), left(leds));
+	}
+	// A response with the given LEDs on the left and none elsewhere
+	private static InputStream left(String leds) {
+		String payload = "{\"layer1\":{\"left\":{" + leds + "},\"top\":{},\"right\":{},\"bottom\":{}}}";
+		return new ByteArrayInputStream(payload.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static void assertSameAsJSON(byte[] payload) throws Exception {
+		assertSameFrame(parse(new JSONAmbilightParser(), new ByteArrayInputStream(payload)),
+				parse(new StreamingAmbilightParser(), new ByteArrayInputStream(payload)));
+	}
+
+	private static AmbilightData parse(AmbilightParser parser, InputStream input) throws Exception {
+		AmbilightData result = new AmbilightData();
+		parser.parse(input, result);
+		return result;
+	}
+
+	private static void assertSameFrame(AmbilightData expected, AmbilightData actual) {
+		for (Position position : Position.values()) {
+			assertEquals(position.name(), expected.getDimension(position), actual.getDimension(position));
+			for (int i = 0; i < expected.getDimension(position); i++) {
+				String led = position + " " + i;
+				assertEquals(led, expected.getRed(position, i), actual.getRed(position, i));
+				assertEquals(led, expected.getGreen(position, i), actual.getGreen(position, i));
+				assertEquals(led, expected.getBlue(position, i), actual.getBlue(position, i));
+			}
+		}
+	}
+
+	// A response in the format of the TV. Optionally with sides, LEDs and channels in random order,
+	// with members the parser does not know, and with whitespace between all tokens
+	private static byte[] createPayload(long seed, boolean reordered, boolean extraMembers, String whitespace) {
+		Random random = new Random(seed);
+		List<String> layer = new ArrayList<String>();
+		for (int side = 0; side < SIDES.length; side++) {
+			int leds = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(side % 2 == 0 ? 20 : 40);
+
+			List<String> colors = new ArrayList<String>();
+			for (int i = 0; i < leds; i++) {
+				List<String> channels = new ArrayList<String>();
+				for (String channel : CHANNELS)
+					channels.add(member(channel, String.valueOf(random.nextInt(256)), whitespace));
+				if (extraMembers)
+					channels.add(member("a", "\"}\"", whitespace));
+				colors.add(member(String.valueOf(i), object(channels, reordered, random, whitespace), whitespace));
+			}
+			layer.add(member(SIDES[side], object(colors, reordered, random, whitespace), whitespace));
+		}
+		if (extraMembers)
+			layer.add(member("center", "{\"0\":{\"r\":1,\"g\":2,\"b\":3}}", whitespace));
+
+		List<String> root = new ArrayList<String>();
+		root.add(member("layer1", object(layer, reordered, random, whitespace), whitespace));
+		if (extraMembers) {
+			root.add(member("layer2", "{\"left\":{\"0\":{\"r\":9,\"g\":9,\"b\":9}}}", whitespace));
+			root.add(member("extra", "[1, -2.5e3, true, null, \"x\\\"{\", {\"a\":[]}]", whitespace));
+		}
+		return object(root, reordered, random, whitespace).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static String member(String key, String value, String whitespace) {
+		return whitespace + "\"" + key + "\"" + whitespace + ":" + whitespace + value + whitespace;
+	}
+
+	private static String object(List<String> members, boolean reordered, Random random, String whitespace) {
+		if (reordered)
+			Collections.shuffle(members, random);
+
+		StringBuilder result = new StringBuilder("{");
+		for (int i = 0; i < members.size(); i++) {
+			if (i > 0)
+				result.append(',');
+			result.append(members.get(i));
+		}
+		return result.append(whitespace).append('}').toString();
+	}
+}